@@ -0,0 +1,48 @@
+package com.traneptora.jxlatte;
+
+import com.traneptora.jxlatte.bundle.AnimationHeader;
+import com.traneptora.jxlatte.frame.FrameHeader;
+
+/**
+ * A displayed frame of an animation, or the only frame of a still image, with its timing.
+ */
+public class AnimationFrame {
+    public final JXLImage image;
+    /* in ticks, see AnimationHeader */
+    public final int duration;
+    public final int timecode;
+    public final boolean isLast;
+    /* null if the image isn't animated */
+    public final AnimationHeader animationHeader;
+
+    private JXLCodestreamDecoder decoder;
+
+    protected AnimationFrame(JXLCodestreamDecoder decoder, JXLImage image, FrameHeader header,
+            AnimationHeader animationHeader) {
+        this.decoder = decoder;
+        this.image = image;
+        this.duration = header.duration;
+        this.timecode = header.timecode;
+        this.isLast = header.isLast;
+        this.animationHeader = animationHeader;
+    }
+
+    /**
+     * @return how long this frame is shown for, in seconds
+     */
+    public double getDurationSeconds() {
+        if (animationHeader == null)
+            return 0D;
+        return (double)duration * animationHeader.tps_denominator / animationHeader.tps_numerator;
+    }
+
+    /**
+     * Hands the buffers of the image back to the decoder, so the next frame can be copied
+     * into them instead of newly allocated ones. The image must not be used after this.
+     */
+    public void release() {
+        if (decoder != null)
+            decoder.releaseImage(image);
+        decoder = null;
+    }
+}
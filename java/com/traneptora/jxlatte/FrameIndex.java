@@ -0,0 +1,173 @@
+package com.traneptora.jxlatte;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.traneptora.jxlatte.bundle.BlendingInfo;
+import com.traneptora.jxlatte.frame.FrameFlags;
+import com.traneptora.jxlatte.frame.FrameHeader;
+
+/**
+ * Where each frame of a codestream starts, and which decoder state it reads and writes,
+ * so a displayed frame can be decoded without decoding everything before it.
+ *
+ * The decoder state is described as a bitmask of the canvas, the four reference slots
+ * and the five LF buffers.
+ */
+public class FrameIndex {
+
+    public static final int CANVAS = 1;
+    public static final int ALL_SLOTS = 0x1E;
+
+    public static int slot(int slot) {
+        return 2 << slot;
+    }
+
+    public static int lfBuffer(int lfLevel) {
+        return 32 << lfLevel;
+    }
+
+    public static class Entry {
+        /* the byte offset of the frame header in the codestream */
+        public final long offset;
+        /* the byte offset and length of the sections listed in the TOC */
+        public final long dataOffset;
+        public final long dataLength;
+        public final int type;
+        public final int duration;
+        public final int timecode;
+        public final boolean isLast;
+        public final boolean visible;
+        /* the displayed frame this frame is part of */
+        public final int displayedFrame;
+        /* the reference slot this frame is saved to, or -1 */
+        public final int savedSlot;
+        /* the state this frame needs, the state it changes, and the state it overwrites entirely */
+        public final int reads;
+        public final int writes;
+        public final int kills;
+
+        public Entry(FrameHeader header, long offset, long dataOffset, long dataLength, int displayedFrame) {
+            this.offset = offset;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.type = header.type;
+            this.duration = header.duration;
+            this.timecode = header.timecode;
+            this.isLast = header.isLast;
+            this.displayedFrame = displayedFrame;
+            boolean blended = header.type == FrameFlags.REGULAR_FRAME || header.type == FrameFlags.SKIP_PROGRESSIVE;
+            this.visible = blended && (header.duration != 0 || header.isLast);
+            int reads = 0;
+            int writes = 0;
+            int kills = 0;
+            if ((header.flags & FrameFlags.USE_LF_FRAME) != 0)
+                reads |= lfBuffer(header.lfLevel);
+            /* working out which slots the patches use means decoding LFGlobal */
+            if ((header.flags & FrameFlags.PATCHES) != 0)
+                reads |= ALL_SLOTS;
+            int savedSlot = -1;
+            if (header.type == FrameFlags.LF_FRAME) {
+                writes |= lfBuffer(header.lfLevel - 1);
+                kills |= lfBuffer(header.lfLevel - 1);
+            } else {
+                if (blended) {
+                    writes |= CANVAS;
+                    if (header.fullFrame)
+                        kills |= CANVAS;
+                    else
+                        reads |= CANVAS;
+                    if (header.blendingInfo.mode != FrameFlags.BLEND_REPLACE)
+                        reads |= slot(header.blendingInfo.source);
+                    for (BlendingInfo info : header.ecBlendingInfo) {
+                        if (info.mode != FrameFlags.BLEND_REPLACE)
+                            reads |= slot(info.source);
+                    }
+                }
+                if ((header.saveAsReference != 0 || header.duration == 0) && !header.isLast) {
+                    savedSlot = header.saveAsReference;
+                    writes |= slot(savedSlot);
+                    kills |= slot(savedSlot);
+                    /* the slot gets whatever is on the canvas afterwards */
+                    if (!header.saveBeforeCT && !blended)
+                        reads |= CANVAS;
+                }
+            }
+            this.savedSlot = savedSlot;
+            this.reads = reads;
+            this.writes = writes;
+            this.kills = kills;
+        }
+    }
+
+    public final Entry[] frames;
+    /* the index into frames of the first frame of each displayed frame */
+    public final int[] displayedFrames;
+    /* whether each displayed frame can be decoded without decoding any earlier displayed frame */
+    public final boolean[] keyframes;
+
+    public FrameIndex(List<Entry> frames) {
+        this.frames = frames.toArray(new Entry[frames.size()]);
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i < this.frames.length; i++) {
+            if (i == 0 || this.frames[i].displayedFrame != this.frames[i - 1].displayedFrame)
+                starts.add(i);
+        }
+        this.displayedFrames = starts.stream().mapToInt(Integer::intValue).toArray();
+        this.keyframes = new boolean[displayedFrames.length];
+        /* state nothing has written to yet is just the initial state, which is always there */
+        int written = 0;
+        for (int d = 0; d < keyframes.length; d++) {
+            int end = d + 1 < displayedFrames.length ? displayedFrames[d + 1] : this.frames.length;
+            keyframes[d] = (markNeeded(displayedFrames[d], end, CANVAS, null) & written) == 0;
+            for (int i = displayedFrames[d]; i < end; i++)
+                written |= this.frames[i].writes;
+        }
+    }
+
+    public int getDisplayedFrameCount() {
+        return displayedFrames.length;
+    }
+
+    /**
+     * Walks backwards from the frame before end, marking the frames that have to be decoded
+     * for the given state to be correct once the frame before end is done.
+     * @param needed if not null, receives the marks
+     * @return the state that's still needed from before start
+     */
+    private int markNeeded(int start, int end, int live, boolean[] needed) {
+        for (int i = end - 1; i >= start && live != 0; i--) {
+            Entry entry = frames[i];
+            if ((entry.writes & live) == 0)
+                continue;
+            if (needed != null)
+                needed[i] = true;
+            live = (live & ~entry.kills) | entry.reads;
+        }
+        return live;
+    }
+
+    /**
+     * @return the state that the frames starting at the given one read before they overwrite it
+     */
+    private int getFutureReads(int start) {
+        int reads = 0;
+        int killed = 0;
+        for (int i = start; i < frames.length; i++) {
+            reads |= frames[i].reads & ~killed;
+            killed |= frames[i].kills;
+        }
+        return reads;
+    }
+
+    /**
+     * Marks the frames before the given displayed frame that have to be decoded for it,
+     * and everything after it, to come out the same as decoding the whole codestream.
+     * @param needed receives the marks, must be at least as long as frames
+     * @return the state that's needed from before the first frame, i.e. the initial state
+     */
+    public int markFramesNeeded(int displayedFrame, boolean[] needed) {
+        int start = displayedFrames[displayedFrame];
+        return markNeeded(0, start, getFutureReads(start), needed);
+    }
+}
@@ -3,7 +3,13 @@ package com.traneptora.jxlatte;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Stream;
 
 import com.traneptora.jxlatte.bundle.BitDepthHeader;
@@ -11,6 +17,7 @@ import com.traneptora.jxlatte.bundle.BlendingInfo;
 import com.traneptora.jxlatte.bundle.ExtraChannelInfo;
 import com.traneptora.jxlatte.bundle.ExtraChannelType;
 import com.traneptora.jxlatte.bundle.ImageHeader;
+import com.traneptora.jxlatte.bundle.PassesInfo;
 import com.traneptora.jxlatte.color.ColorEncodingBundle;
 import com.traneptora.jxlatte.color.ColorFlags;
 import com.traneptora.jxlatte.color.OpsinInverseMatrix;
@@ -20,6 +27,7 @@ import com.traneptora.jxlatte.frame.FrameHeader;
 import com.traneptora.jxlatte.frame.features.Patch;
 import com.traneptora.jxlatte.io.Bitreader;
 import com.traneptora.jxlatte.io.Demuxer;
+import com.traneptora.jxlatte.io.IOHelper;
 import com.traneptora.jxlatte.io.InvalidBitstreamException;
 import com.traneptora.jxlatte.io.Loggers;
 import com.traneptora.jxlatte.io.PushbackInputStream;
@@ -33,11 +41,11 @@ public class JXLCodestreamDecoder {
 
     private static void copyToCanvas(ImageBuffer canvas, Point patchStart, Point frameOffset,
             Dimension size, ImageBuffer frameBuffer) {
-        Object[] canvasB = canvas.getBackingBuffer();
-        Object[] frameB = frameBuffer.getBackingBuffer();
+        Object canvasB = canvas.getFlatBackingBuffer();
+        Object frameB = frameBuffer.getFlatBackingBuffer();
         for (int y = 0; y < size.height; y++)
-            System.arraycopy(frameB[y + frameOffset.y], frameOffset.x,
-                canvasB[y + patchStart.y], patchStart.x, size.width);
+            System.arraycopy(frameB, frameBuffer.getRowOffset(y + frameOffset.y) + frameOffset.x,
+                canvasB, canvas.getRowOffset(y + patchStart.y) + patchStart.x, size.width);
     }
 
     private static float[][] transposeBufferFloat(float[][] src, int orientation) {
@@ -182,11 +190,109 @@ public class JXLCodestreamDecoder {
         }
     }
 
+    /**
+     * @return a new buffer with the given orientation applied, never src itself
+     */
     private static ImageBuffer transposeBuffer(ImageBuffer src, int orientation) {
+        if (orientation == 1)
+            return new ImageBuffer(src);
+        ImageBuffer jagged = src.toJagged();
         if (src.isInt())
-            return new ImageBuffer(transposeBufferInt(src.getIntBuffer(), orientation));
+            return new ImageBuffer(transposeBufferInt(jagged.getIntBuffer(), orientation));
         else
-            return new ImageBuffer(transposeBufferFloat(src.getFloatBuffer(), orientation));
+            return new ImageBuffer(transposeBufferFloat(jagged.getFloatBuffer(), orientation));
+    }
+
+    /**
+     * Maps a region of the oriented image back onto the canvas, of the given size, before orientation.
+     */
+    private static Rectangle unorientRegion(Rectangle region, int orientation, Dimension size) {
+        int y = region.origin.y;
+        int x = region.origin.x;
+        int h = region.size.height;
+        int w = region.size.width;
+        switch (orientation) {
+            case 1:
+                return new Rectangle(y, x, h, w);
+            case 2:
+                return new Rectangle(y, size.width - (x + w), h, w);
+            case 3:
+                return new Rectangle(size.height - (y + h), size.width - (x + w), h, w);
+            case 4:
+                return new Rectangle(size.height - (y + h), x, h, w);
+            case 5:
+                return new Rectangle(x, y, w, h);
+            case 6:
+                return new Rectangle(size.height - (x + w), y, w, h);
+            case 7:
+                return new Rectangle(size.height - (x + w), size.width - (y + h), w, h);
+            case 8:
+                return new Rectangle(x, size.width - (y + h), w, h);
+            default:
+                throw new IllegalStateException("Challenge complete how did we get here");
+        }
+    }
+
+    private static ImageBuffer cropBuffer(ImageBuffer src, Rectangle region) {
+        if (region.origin.y == 0 && region.origin.x == 0
+                && region.size.height == src.height && region.size.width == src.width)
+            return src;
+        ImageBuffer dest = new ImageBuffer(src.getType(), region.size.height, region.size.width, 0);
+        Object srcBuffer = src.getFlatBackingBuffer();
+        Object destBuffer = dest.getFlatBackingBuffer();
+        for (int y = 0; y < dest.height; y++) {
+            System.arraycopy(srcBuffer, src.getRowOffset(y + region.origin.y) + region.origin.x,
+                destBuffer, dest.getRowOffset(y), dest.width);
+        }
+        return dest;
+    }
+
+    /**
+     * Shrinks a buffer by the given power of two, averaging each box of samples.
+     */
+    private static ImageBuffer downscaleBuffer(ImageBuffer src, int factor) {
+        if (factor == 1)
+            return src;
+        int shift = Integer.numberOfTrailingZeros(factor);
+        ImageBuffer dest = new ImageBuffer(src.getType(), MathHelper.ceilDiv(src.height, factor),
+            MathHelper.ceilDiv(src.width, factor), 0);
+        float[] sums = new float[dest.width];
+        for (int y = 0; y < dest.height; y++) {
+            int y0 = y << shift;
+            int y1 = Math.min(y0 + factor, src.height);
+            Arrays.fill(sums, 0f);
+            for (int sy = y0; sy < y1; sy++) {
+                int row = src.getRowOffset(sy);
+                if (src.isInt()) {
+                    int[] buff = src.getFlatIntBuffer();
+                    for (int sx = 0; sx < src.width; sx++)
+                        sums[sx >> shift] += buff[row + sx];
+                } else {
+                    float[] buff = src.getFlatFloatBuffer();
+                    for (int sx = 0; sx < src.width; sx++)
+                        sums[sx >> shift] += buff[row + sx];
+                }
+            }
+            int destRow = dest.getRowOffset(y);
+            for (int x = 0; x < dest.width; x++) {
+                int x0 = x << shift;
+                float count = (y1 - y0) * (Math.min(x0 + factor, src.width) - x0);
+                if (dest.isInt())
+                    dest.getFlatIntBuffer()[destRow + x] = Math.round(sums[x] / count);
+                else
+                    dest.getFlatFloatBuffer()[destRow + x] = sums[x] / count;
+            }
+        }
+        return dest;
+    }
+
+    /* the last pass needed for an image complete at the given downsampling factor */
+    private static int getLastPassNeeded(PassesInfo passes, int downsampling) {
+        for (int i = 0; i < passes.downSample.length; i++) {
+            if (passes.downSample[i] <= downsampling)
+                return passes.lastPass[i];
+        }
+        return passes.numPasses - 1;
     }
 
     private Bitreader bitreader;
@@ -201,12 +307,48 @@ public class JXLCodestreamDecoder {
     private ImageBuffer[][] reference = new ImageBuffer[4][];
     private ImageBuffer[][] lfBuffer = new ImageBuffer[5][];
     private ImageBuffer[] canvas;
+    private ExecutorService executor;
+    /* set once a progressive listener stops decoding partway through a frame */
+    private boolean stopped = false;
+    private JXLImage lastPreview;
+    /* the buffers of the last image released, the next image is copied into them if they fit */
+    private ImageBuffer[] spareCanvas;
+    private FrameHeader lastFrameHeader;
+    /* the whole codestream, if it's held in memory, which is what makes seeking possible */
+    private ByteBuffer codestream;
+    private FrameIndex frameIndex;
+    /* the number of the next frame in the codestream, and which ones to skip while seeking */
+    private int frameNumber = 0;
+    private boolean[] skipFrames;
+    /* set while seeking, as the displayed frames on the way there aren't wanted */
+    private boolean discardOutput = false;
 
     public JXLCodestreamDecoder(PushbackInputStream in, JXLOptions options, Demuxer demuxer) {
+        this(new Bitreader(in), options, demuxer);
         this.in = in;
-        this.bitreader = new Bitreader(in);
+    }
+
+    /**
+     * Decodes out of a Bitreader that holds the whole codestream, such as one over a mapped file.
+     */
+    public JXLCodestreamDecoder(Bitreader bitreader, JXLOptions options, Demuxer demuxer) {
+        this.bitreader = bitreader;
         this.options = options;
         this.demuxer = demuxer;
+        int threads = options.threads > 0 ? options.threads : Runtime.getRuntime().availableProcessors();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "jxlatte-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Decodes out of a buffer that holds the whole codestream, which also allows seeking.
+     */
+    public JXLCodestreamDecoder(ByteBuffer codestream, JXLOptions options, Demuxer demuxer) {
+        this(new Bitreader(codestream), options, demuxer);
+        this.codestream = codestream;
     }
 
     private void computePatches(Frame frame) throws InvalidBitstreamException {
@@ -254,29 +396,36 @@ public class JXLCodestreamDecoder {
     }
 
     public void performColorTransforms(OpsinInverseMatrix matrix, Frame frame) {
-        if (matrix == null && !frame.getFrameHeader().doYCbCr)
+        performColorTransforms(matrix, frame.getFrameHeader().doYCbCr, frame.getBuffer());
+    }
+
+    private void performColorTransforms(OpsinInverseMatrix matrix, boolean doYCbCr, ImageBuffer[] buffer) {
+        if (matrix == null && !doYCbCr)
             return;
-        ImageBuffer[] buffer = frame.getBuffer();
-        float[][][] buffers = new float[3][][];
         int depth = imageHeader.getBitDepthHeader().bitsPerSample;
-        for (int c = 0; c < 3; c++) {
+        for (int c = 0; c < 3; c++)
             buffer[c].castToFloat(depth);
-            buffers[c] = buffer[c].getFloatBuffer();
-        }
 
         if (matrix != null)
-            matrix.invertXYB(buffers, imageHeader.getToneMapping().intensityTarget);
-
-        if (frame.getFrameHeader().doYCbCr) {
-            Dimension paddedSize = frame.getPaddedFrameSize();
-            for (int y = 0; y < paddedSize.height; y++) {
-                for (int x = 0; x < paddedSize.width; x++) {
-                    float cb = buffers[0][y][x];
-                    float yh = buffers[1][y][x] + 0.50196078431372549019f;
-                    float cr = buffers[2][y][x];
-                    buffers[0][y][x] = yh + 1.402f * cr;
-                    buffers[1][y][x] = yh - 0.34413628620102214650f * cb - 0.71413628620102214650f * cr;
-                    buffers[2][y][x] = yh + 1.772f * cb;
+            matrix.invertXYB(buffer, imageHeader.getToneMapping().intensityTarget);
+
+        if (doYCbCr) {
+            int height = buffer[1].height;
+            int width = buffer[1].width;
+            float[] cbB = buffer[0].getFlatFloatBuffer();
+            float[] yB = buffer[1].getFlatFloatBuffer();
+            float[] crB = buffer[2].getFlatFloatBuffer();
+            for (int y = 0; y < height; y++) {
+                int cbRow = buffer[0].getRowOffset(y);
+                int yRow = buffer[1].getRowOffset(y);
+                int crRow = buffer[2].getRowOffset(y);
+                for (int x = 0; x < width; x++) {
+                    float cb = cbB[cbRow + x];
+                    float yh = yB[yRow + x] + 0.50196078431372549019f;
+                    float cr = crB[crRow + x];
+                    cbB[cbRow + x] = yh + 1.402f * cr;
+                    yB[yRow + x] = yh - 0.34413628620102214650f * cb - 0.71413628620102214650f * cr;
+                    crB[crRow + x] = yh + 1.772f * cb;
                 }
             }
         }
@@ -285,55 +434,44 @@ public class JXLCodestreamDecoder {
     private static void blendAdd(ImageBuffer canvas, ImageBuffer frame, ImageBuffer ref,
             Point patchStart, Point frameOffset, Point refOffset, Dimension size) {
         if (frame.isInt()) {
-            int[][] cb = canvas.getIntBuffer();
-            int[][] rb = ref.getIntBuffer();
-            int[][] fb = frame.getIntBuffer();
+            int[] cb = canvas.getFlatIntBuffer();
+            int[] rb = ref.getFlatIntBuffer();
+            int[] fb = frame.getFlatIntBuffer();
             for (int y = 0; y < size.height; y++) {
-                int cy = y + patchStart.y;
-                int fy = y + frameOffset.y;
-                int ry = y + refOffset.y;
-                for (int x = 0; x < size.width; x++) {
-                    int cx = x + patchStart.x;
-                    int fx = x + frameOffset.x;
-                    int rx = x + refOffset.x;
-                    cb[cy][cx] = rb[ry][rx] + fb[fy][fx];
-                }
+                int cRow = canvas.getRowOffset(y + patchStart.y) + patchStart.x;
+                int fRow = frame.getRowOffset(y + frameOffset.y) + frameOffset.x;
+                int rRow = ref.getRowOffset(y + refOffset.y) + refOffset.x;
+                for (int x = 0; x < size.width; x++)
+                    cb[cRow + x] = rb[rRow + x] + fb[fRow + x];
             }
         } else {
-            float[][] cb = canvas.getFloatBuffer();
-            float[][] rb = ref.getFloatBuffer();
-            float[][] fb = frame.getFloatBuffer();
+            float[] cb = canvas.getFlatFloatBuffer();
+            float[] rb = ref.getFlatFloatBuffer();
+            float[] fb = frame.getFlatFloatBuffer();
             for (int y = 0; y < size.height; y++) {
-                int cy = y + patchStart.y;
-                int fy = y + frameOffset.y;
-                int ry = y + refOffset.y;
-                for (int x = 0; x < size.width; x++) {
-                    int cx = x + patchStart.x;
-                    int fx = x + frameOffset.x;
-                    int rx = x + refOffset.x;
-                    cb[cy][cx] = rb[ry][rx] + fb[fy][fx];
-                }
+                int cRow = canvas.getRowOffset(y + patchStart.y) + patchStart.x;
+                int fRow = frame.getRowOffset(y + frameOffset.y) + frameOffset.x;
+                int rRow = ref.getRowOffset(y + refOffset.y) + refOffset.x;
+                for (int x = 0; x < size.width; x++)
+                    cb[cRow + x] = rb[rRow + x] + fb[fRow + x];
             }
         }
     }
 
     private static void blendMult(ImageBuffer canvas, ImageBuffer frame, ImageBuffer ref,
              Point patchStart, Point frameOffset, Point refOffset, Dimension size, boolean clamp) {
-        float[][] cf = canvas.getFloatBuffer();
-        float[][] rf = ref.getFloatBuffer();
-        float[][] ff = frame.getFloatBuffer();
+        float[] cf = canvas.getFlatFloatBuffer();
+        float[] rf = ref.getFlatFloatBuffer();
+        float[] ff = frame.getFlatFloatBuffer();
         for (int y = 0; y < size.height; y++) {
-            int cy = y + patchStart.y;
-            int fy = y + frameOffset.y;
-            int ry = y + refOffset.y;
+            int cRow = canvas.getRowOffset(y + patchStart.y) + patchStart.x;
+            int fRow = frame.getRowOffset(y + frameOffset.y) + frameOffset.x;
+            int rRow = ref.getRowOffset(y + refOffset.y) + refOffset.x;
             for (int x = 0; x < size.width; x++) {
-                int cx = x + patchStart.x;
-                int fx = x + frameOffset.x;
-                int rx = x + refOffset.x;
-                float newSample = ff[fy][fx];
+                float newSample = ff[fRow + x];
                 if (clamp)
                     newSample = MathHelper.clampAsc(newSample, 0.0f, 1.0f);
-                cf[cy][cx] = newSample * rf[ry][rx];
+                cf[cRow + x] = newSample * rf[rRow + x];
             }
         }
     }
@@ -347,31 +485,30 @@ public class JXLCodestreamDecoder {
             blendAdd(canvas, frame, ref, patchStart, frameOffset, refOffset, size);
             return;
         }
-        float[][] oaf = isAlpha ? null : refAlpha.getFloatBuffer();
-        float[][] naf = isAlpha ? null : frameAlpha.getFloatBuffer();
-        float[][] rf = ref.getFloatBuffer();
-        float[][] ff = frame.getFloatBuffer();
-        float[][] cf = canvas.getFloatBuffer();
+        float[] oaf = isAlpha ? null : refAlpha.getFlatFloatBuffer();
+        float[] naf = isAlpha ? null : frameAlpha.getFlatFloatBuffer();
+        float[] rf = ref.getFlatFloatBuffer();
+        float[] ff = frame.getFlatFloatBuffer();
+        float[] cf = canvas.getFlatFloatBuffer();
         for (int y = 0; y < size.height; y++) {
-            int cy = y + patchStart.y;
-            int fy = y + frameOffset.y;
-            int ry = y + refOffset.y;
+            int cRow = canvas.getRowOffset(y + patchStart.y) + patchStart.x;
+            int fRow = frame.getRowOffset(y + frameOffset.y) + frameOffset.x;
+            int rRow = ref.getRowOffset(y + refOffset.y) + refOffset.x;
+            int oaRow = isAlpha ? 0 : refAlpha.getRowOffset(y + refOffset.y) + refOffset.x;
+            int naRow = isAlpha ? 0 : frameAlpha.getRowOffset(y + frameOffset.y) + frameOffset.x;
             for (int x = 0; x < size.width; x++) {
-                int cx = x + patchStart.x;
-                int fx = x + frameOffset.x;
-                int rx = x + refOffset.x;
-                float oldSample = rf[ry][rx];
-                float newSample = ff[fy][fx];
-                float oldAlpha = isAlpha ? oldSample : oaf[ry][rx];
-                float newAlpha = isAlpha ? newSample : naf[fy][fx];
+                float oldSample = rf[rRow + x];
+                float newSample = ff[fRow + x];
+                float oldAlpha = isAlpha ? oldSample : oaf[oaRow + x];
+                float newAlpha = isAlpha ? newSample : naf[naRow + x];
                 if (clamp)
                     newAlpha = MathHelper.clampAsc(newAlpha, 0.0f, 1.0f);
                 if (isAlpha) {
-                    cf[cy][cx] = oldAlpha + newAlpha * (1.0f - oldAlpha);
+                    cf[cRow + x] = oldAlpha + newAlpha * (1.0f - oldAlpha);
                 } else if (premult) {
-                    cf[cy][cx] = newSample + oldSample * (1.0f - newAlpha);
+                    cf[cRow + x] = newSample + oldSample * (1.0f - newAlpha);
                 } else {
-                    cf[cy][cx] = (newSample * newAlpha + oldSample * oldAlpha * (1.0f - newAlpha))
+                    cf[cRow + x] = (newSample * newAlpha + oldSample * oldAlpha * (1.0f - newAlpha))
                         / (oldAlpha + newAlpha * (1.0f - oldAlpha));
                 }
             }
@@ -390,24 +527,22 @@ public class JXLCodestreamDecoder {
             copyToCanvas(canvas, patchStart, frameOffset, size, ref);
             return;
         }
-        float[][] naf = frameAlpha.getFloatBuffer();
-        float[][] rf = ref.getFloatBuffer();
-        float[][] ff = frame.getFloatBuffer();
-        float[][] cf = canvas.getFloatBuffer();
+        float[] naf = frameAlpha.getFlatFloatBuffer();
+        float[] rf = ref.getFlatFloatBuffer();
+        float[] ff = frame.getFlatFloatBuffer();
+        float[] cf = canvas.getFlatFloatBuffer();
         for (int y = 0; y < size.height; y++) {
-            int cy = y + patchStart.y;
-            int fy = y + frameOffset.y;
-            int ry = y + refOffset.y;
+            int cRow = canvas.getRowOffset(y + patchStart.y) + patchStart.x;
+            int fRow = frame.getRowOffset(y + frameOffset.y) + frameOffset.x;
+            int rRow = ref.getRowOffset(y + refOffset.y) + refOffset.x;
+            int naRow = frameAlpha.getRowOffset(y + frameOffset.y) + frameOffset.x;
             for (int x = 0; x < size.width; x++) {
-                int cx = x + patchStart.x;
-                int fx = x + frameOffset.x;
-                int rx = x + refOffset.x;
-                float oldSample = rf[ry][rx];
-                float newSample = ff[fy][fx];
-                float newAlpha = naf[fy][fx];
+                float oldSample = rf[rRow + x];
+                float newSample = ff[fRow + x];
+                float newAlpha = naf[naRow + x];
                 if (clamp)
                     newAlpha = MathHelper.clampAsc(newAlpha, 0.0f, 1.0f);
-                cf[cy][cx] = oldSample + newAlpha * newSample;
+                cf[cRow + x] = oldSample + newAlpha * newSample;
             }
         }
     }
@@ -439,7 +574,7 @@ public class JXLCodestreamDecoder {
             return;
         }
         if (refBuffers[idx] == null)
-            refBuffers[idx] = new ImageBuffer(canvas.getType(), canvas.height, canvas.width);
+            refBuffers[idx] = new ImageBuffer(canvas.getType(), canvas.height, canvas.width, 0);
         ImageBuffer refBuffer = refBuffers[idx];
         ImageBuffer refAlpha = hasExtra ? refBuffers[colors + info.alphaChannel] : null;
         ImageBuffer frameAlpha = hasExtra ? frameBuffers[frameColors + info.alphaChannel] : null;
@@ -447,7 +582,7 @@ public class JXLCodestreamDecoder {
             int alphaDepth = alphaInfo.bitDepth.bitsPerSample;
             if (info.mode == FrameFlags.BLEND_BLEND) {
                 if (refAlpha == null) {
-                    refAlpha = new ImageBuffer(ImageBuffer.TYPE_FLOAT, canvas.height, canvas.width);
+                    refAlpha = new ImageBuffer(ImageBuffer.TYPE_FLOAT, canvas.height, canvas.width, 0);
                     refBuffers[colors + info.alphaChannel] = refAlpha;
                 }
                 refBuffers[colors + info.alphaChannel].castToFloat(alphaDepth);
@@ -537,7 +672,60 @@ public class JXLCodestreamDecoder {
     }
 
     public boolean atEnd() throws IOException {
-        return bitreader != null && bitreader.atEnd();
+        return stopped || bitreader != null && bitreader.atEnd();
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void readImageHeader(Loggers loggers) throws IOException {
+        bitreader.showBits(16); // force the level to be populated
+        int level = demuxer.getLevel();
+        this.imageHeader = ImageHeader.read(loggers, bitreader, level);
+        loggers.log(Loggers.LOG_INFO, "Image: %s", options.input != null ? options.input : "<stdin>");
+        loggers.log(Loggers.LOG_INFO, "    Level: %d", level);
+        Dimension size = imageHeader.getSize();
+        loggers.log(Loggers.LOG_INFO, "    Size: %dx%d", size.width, size.height);
+        boolean gray = imageHeader.getColorChannelCount() < 3;
+        boolean alpha = imageHeader.hasAlpha();
+        loggers.log(Loggers.LOG_INFO, "    Pixel Format: %s",
+            gray ? (alpha ? "Gray + Alpha" : "Grayscale") : (alpha ? "RGBA" : "RGB"));
+        loggers.log(Loggers.LOG_INFO, "    Bit Depth: %d", imageHeader.getBitDepthHeader().bitsPerSample);
+        loggers.log(Loggers.LOG_VERBOSE, "    Extra Channels: %d", imageHeader.getExtraChannelCount());
+        loggers.log(Loggers.LOG_VERBOSE, "    XYB Encoded: %b", imageHeader.isXYBEncoded());
+        ColorEncodingBundle ce = imageHeader.getColorEncoding();
+        if (!gray) {
+            loggers.log(Loggers.LOG_VERBOSE, "    Primaries: %s",
+                ColorFlags.primariesToString(ce.primaries));
+        }
+        loggers.log(Loggers.LOG_VERBOSE, "    White Point: %s", ColorFlags.whitePointToString(ce.whitePoint));
+        loggers.log(Loggers.LOG_VERBOSE, "    Transfer Function: %s", ColorFlags.transferToString(ce.tf));
+        if (imageHeader.getAnimationHeader() != null)
+            loggers.log(Loggers.LOG_INFO, "    Animated: true");
+        canvas = new ImageBuffer[imageHeader.getColorChannelCount() + imageHeader.getExtraChannelCount()];
+    }
+
+    private void skipPreviewFrame(Bitreader reader, ImageHeader header, Loggers loggers) throws IOException {
+        JXLOptions previewOptions = new JXLOptions(options);
+        previewOptions.parseOnly = true;
+        Frame frame = new Frame(reader, header, loggers, previewOptions, executor);
+        frame.readFrameHeader();
+        frame.readTOC();
+        frame.skipFrameData();
+    }
+
+    private void countFrame(boolean visible) {
+        if (visible) {
+            visibleFrames++;
+            invisibleFrames = 0;
+        } else {
+            invisibleFrames++;
+        }
     }
 
     public JXLImage decode() throws IOException {
@@ -545,46 +733,45 @@ public class JXLCodestreamDecoder {
     }
 
     public JXLImage decode(PrintWriter err) throws IOException {
+        return decode(err, options.roi, null);
+    }
+
+    public JXLImage decode(Rectangle roi) throws IOException {
+        return decode(new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8)), roi, null);
+    }
+
+    public JXLImage decode(ProgressiveListener listener) throws IOException {
+        return decode(new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8)),
+            options.roi, listener);
+    }
+
+    /**
+     * @param roi if not null, only this region of the oriented image is decoded and returned
+     * @param listener if not null, receives the intermediate images of the frame this returns
+     */
+    public JXLImage decode(PrintWriter err, Rectangle roi, ProgressiveListener listener) throws IOException {
+        int downsampling = options.downsampling;
+        if (downsampling != 1 && downsampling != 2 && downsampling != 4 && downsampling != 8)
+            throw new IllegalArgumentException("Invalid downsampling factor: " + downsampling);
+        if (roi != null && downsampling != 1)
+            throw new IllegalArgumentException("Can't decode a region of interest with downsampling");
         if (atEnd())
             return null;
         Loggers loggers = new Loggers(options, err);
-        bitreader.showBits(16); // force the level to be populated
-        int level = demuxer.getLevel();
-        Dimension size;
-        if (this.imageHeader == null) {
-            this.imageHeader = ImageHeader.read(loggers, bitreader, level);
-            loggers.log(Loggers.LOG_INFO, "Image: %s", options.input != null ? options.input : "<stdin>");
-            loggers.log(Loggers.LOG_INFO, "    Level: %d", level);
-            size = imageHeader.getSize();
-            loggers.log(Loggers.LOG_INFO, "    Size: %dx%d", size.width, size.height);
-            boolean gray = imageHeader.getColorChannelCount() < 3;
-            boolean alpha = imageHeader.hasAlpha();
-            loggers.log(Loggers.LOG_INFO, "    Pixel Format: %s",
-                gray ? (alpha ? "Gray + Alpha" : "Grayscale") : (alpha ? "RGBA" : "RGB"));
-            loggers.log(Loggers.LOG_INFO, "    Bit Depth: %d", imageHeader.getBitDepthHeader().bitsPerSample);
-            loggers.log(Loggers.LOG_VERBOSE, "    Extra Channels: %d", imageHeader.getExtraChannelCount());
-            loggers.log(Loggers.LOG_VERBOSE, "    XYB Encoded: %b", imageHeader.isXYBEncoded());
-            ColorEncodingBundle ce = imageHeader.getColorEncoding();
-            if (!gray) {
-                loggers.log(Loggers.LOG_VERBOSE, "    Primaries: %s",
-                    ColorFlags.primariesToString(ce.primaries));
-            }
-            loggers.log(Loggers.LOG_VERBOSE, "    White Point: %s", ColorFlags.whitePointToString(ce.whitePoint));
-            loggers.log(Loggers.LOG_VERBOSE, "    Transfer Function: %s", ColorFlags.transferToString(ce.tf));
-            if (imageHeader.getAnimationHeader() != null)
-                loggers.log(Loggers.LOG_INFO, "    Animated: true");
-            canvas = new ImageBuffer[imageHeader.getColorChannelCount() + imageHeader.getExtraChannelCount()];
-        } else {
-            size = imageHeader.getSize();
+        if (this.imageHeader == null)
+            readImageHeader(loggers);
+        Dimension size = imageHeader.getSize();
+
+        Rectangle region = null;
+        if (roi != null) {
+            Rectangle clipped = new Rectangle(imageHeader.getOrientedSize()).computeIntersection(roi);
+            if (clipped.isEmpty())
+                throw new IllegalArgumentException("Region of interest is outside of the image: " + roi);
+            region = unorientRegion(clipped, imageHeader.getOrientation(), size);
         }
 
         if (imageHeader.getPreviewSize() != null && !skippedPreview) {
-            JXLOptions previewOptions = new JXLOptions(options);
-            previewOptions.parseOnly = true;
-            Frame frame = new Frame(bitreader, imageHeader, loggers, previewOptions);
-            frame.readFrameHeader();
-            frame.readTOC();
-            frame.skipFrameData();
+            skipPreviewFrame(bitreader, imageHeader, loggers);
             skippedPreview = true;
         }
 
@@ -595,9 +782,11 @@ public class JXLCodestreamDecoder {
         }
 
         FrameHeader header;
+        /* the preview a listener stopped a frame at, if it's not the last one */
+        JXLImage stoppedPreview = null;
 
         do {
-            Frame frame = new Frame(bitreader, imageHeader, loggers, options);
+            Frame frame = new Frame(bitreader, imageHeader, loggers, options, executor);
             header = frame.readFrameHeader();
             if (totalFrames++ == 0) {
                 loggers.log(Loggers.LOG_INFO, "    Lossless: %s",
@@ -606,25 +795,90 @@ public class JXLCodestreamDecoder {
             frame.printDebugInfo();
             loggers.log(Loggers.LOG_TRACE, "%s", header);
             frame.readTOC();
+            int number = frameNumber++;
             if (options.parseOnly) {
                 frame.skipFrameData();
                 continue;
             }
+            /* nothing that's still to come depends on this frame */
+            if (skipFrames != null && number < skipFrames.length && skipFrames[number]) {
+                if (header.type != FrameFlags.LF_FRAME)
+                    countFrame(frame.isVisible());
+                frame.skipFrameData();
+                continue;
+            }
+            /* nothing reads the last frame back, so whatever is outside the region can be skipped */
+            if (region != null && header.isLast)
+                frame.setRegionOfInterest(region);
             if (lfBuffer[header.lfLevel] == null && (header.flags & FrameFlags.USE_LF_FRAME) != 0)
                 throw new InvalidBitstreamException("LF Level too large");
+            /* previews are rendered onto a copy of the canvas, so they don't disturb decoding */
+            if (listener != null && (header.isLast || header.duration != 0) && header.encoding == FrameFlags.VARDCT
+                    && (header.type == FrameFlags.REGULAR_FRAME || header.type == FrameFlags.SKIP_PROGRESSIVE)) {
+                final Frame current = frame;
+                final OpsinInverseMatrix currentMatrix = matrix;
+                final Rectangle currentRegion = region;
+                final PassesInfo passes = header.passes;
+                frame.setPassCallback(pass -> {
+                    if (pass < 0)
+                        current.renderLFPreview();
+                    lastPreview = renderPreview(current, currentMatrix, currentRegion);
+                    return listener.imageDecoded(lastPreview, pass, getDownsampling(passes, pass));
+                }, true);
+            }
+            /*
+             * the passes (or the LF alone) that are enough at this scale can stand in for the last frame,
+             * as long as there's no extra channels, which only arrive with the last pass
+             */
+            int lastPassNeeded = header.passes.numPasses - 1;
+            if (downsampling > 1 && listener == null && header.isLast && header.encoding == FrameFlags.VARDCT
+                    && (header.type == FrameFlags.REGULAR_FRAME || header.type == FrameFlags.SKIP_PROGRESSIVE)
+                    && imageHeader.getExtraChannelCount() == 0) {
+                lastPassNeeded = getLastPassNeeded(header.passes, downsampling);
+                /*
+                 * the LF image can only be used directly if it's all there is to the canvas,
+                 * with nothing drawn on top of it
+                 */
+                boolean lfOnly = downsampling == 8 && header.upsampling == 1
+                    && (header.flags & (FrameFlags.PATCHES | FrameFlags.SPLINES)) == 0
+                    && header.blendingInfo.mode == FrameFlags.BLEND_REPLACE
+                    && header.bounds.origin.y == 0 && header.bounds.origin.x == 0
+                    && header.bounds.size.equals(size);
+                if (lfOnly)
+                    lastPassNeeded = -1;
+                final int stopAfter = lastPassNeeded;
+                if (stopAfter < header.passes.numPasses - 1)
+                    frame.setPassCallback(pass -> pass < stopAfter, stopAfter < 0);
+            }
             frame.decodeFrame(lfBuffer[header.lfLevel]);
+            if (frame.isStoppedEarly() && header.isLast) {
+                stopped = true;
+                lastFrameHeader = header;
+                if (listener != null) {
+                    JXLImage preview = lastPreview;
+                    lastPreview = null;
+                    return preview;
+                }
+                if (lastPassNeeded < 0)
+                    return renderLFImage(frame, matrix);
+                return toImage(renderPreviewCanvas(frame, matrix), null, downsampling);
+            }
+            if (frame.isStoppedEarly()) {
+                /*
+                 * only a listener stops a frame before the last one, which just declines the rest of it:
+                 * the frame goes onto the canvas as far as it got, and the animation carries on
+                 */
+                stoppedPreview = lastPreview;
+                frame.skipUnreadSections();
+                frame.finishPreview();
+            }
             if (header.lfLevel > 0)
                 lfBuffer[header.lfLevel - 1] = frame.getBuffer();
             if (header.type == FrameFlags.LF_FRAME)
                 continue;
             boolean save = (header.saveAsReference != 0 || header.duration == 0)
                 && !header.isLast && header.type != FrameFlags.LF_FRAME;
-            if (frame.isVisible()) {
-                visibleFrames++;
-                invisibleFrames = 0;
-            } else {
-                invisibleFrames++;
-            }
+            countFrame(frame.isVisible());
             frame.upsample();
             frame.initializeNoise((visibleFrames << 32) | invisibleFrames);
             if (save && header.saveBeforeCT) {
@@ -639,40 +893,237 @@ public class JXLCodestreamDecoder {
                 frame.drawVarblocks();
             if (canvas[0] == null) {
                 for (int c = 0; c < canvas.length; c++)
-                    canvas[c] = new ImageBuffer(frame.getBuffer()[0].getType(), size.height, size.width);
+                    canvas[c] = new ImageBuffer(frame.getBuffer()[0].getType(), size.height, size.width, 0);
             }
             if (header.type == FrameFlags.REGULAR_FRAME || header.type == FrameFlags.SKIP_PROGRESSIVE) {
-                boolean found = false;
+                /*
+                 * copy on write: the canvas is blended onto in place unless a reference slot
+                 * this frame doesn't overwrite still holds it
+                 */
+                boolean shared = false;
                 for (int i = 0; i < 4; i++) {
-                    if (reference[i] == canvas && i != header.saveAsReference) {
-                        found = true;
+                    if (reference[i] == canvas && !(save && i == header.saveAsReference)) {
+                        shared = true;
                         break;
                     }
                 }
-                if (found)
+                if (shared)
                     canvas = Stream.of(canvas).map(b -> new ImageBuffer(b)).toArray(ImageBuffer[]::new);
                 blendFrame(canvas, frame);
             }
             if (save && !header.saveBeforeCT)
                 reference[header.saveAsReference] = canvas;
         } while (!header.isLast && header.duration == 0);
+        lastFrameHeader = header;
 
         bitreader.zeroPadToByte();
-        byte[] drain = bitreader.drainCache();
-        if (drain != null)
-            demuxer.pushBack(drain);
-        while ((drain = in.drain()) != null)
-            demuxer.pushBack(drain);
+        /* a reader over the whole codestream just carries on from where it is */
+        if (in != null) {
+            byte[] drain = bitreader.drainCache();
+            if (drain != null)
+                demuxer.pushBack(drain);
+            while ((drain = in.drain()) != null)
+                demuxer.pushBack(drain);
+        }
 
-        if (options.parseOnly)
+        if (options.parseOnly || discardOutput)
             return null;
 
+        lastPreview = null;
+        if (stoppedPreview != null)
+            return stoppedPreview;
+        return toImage(canvas, region, downsampling);
+    }
+
+    private JXLImage toImage(ImageBuffer[] canvas, Rectangle region, int downsampling) throws IOException {
         int orientation = imageHeader.getOrientation();
 
+        /* the image owns its buffers, the canvas stays with the decoder */
+        ImageBuffer[] spare = spareCanvas != null && spareCanvas.length == canvas.length ? spareCanvas : null;
+        spareCanvas = null;
         ImageBuffer[] orientedCanvas = new ImageBuffer[canvas.length];
-        for (int i = 0; i < orientedCanvas.length; i++)
-            orientedCanvas[i] = transposeBuffer(canvas[i], orientation);
+        for (int i = 0; i < orientedCanvas.length; i++) {
+            ImageBuffer buffer = region != null ? cropBuffer(canvas[i], region) : canvas[i];
+            buffer = downscaleBuffer(buffer, downsampling);
+            if (orientation != 1)
+                buffer = transposeBuffer(buffer, orientation);
+            else if (buffer == this.canvas[i])
+                buffer = copyBuffer(buffer, spare != null ? spare[i] : null);
+            orientedCanvas[i] = buffer;
+        }
 
         return new JXLImage(orientedCanvas, imageHeader);
     }
+
+    /**
+     * @return a copy of src, in dest if it has the same size, type and layout
+     */
+    private static ImageBuffer copyBuffer(ImageBuffer src, ImageBuffer dest) {
+        if (dest == null || dest == src || dest.getType() != src.getType() || dest.height != src.height
+                || dest.width != src.width || !dest.isFlat() || !src.isFlat())
+            return new ImageBuffer(src);
+        copyToCanvas(dest, new Point(), new Point(), new Dimension(src.height, src.width), src);
+        return dest;
+    }
+
+    /**
+     * Hands the buffers of an image this decoder returned back to it, so the next image can be
+     * copied into them rather than into newly allocated ones. The image must not be used afterwards.
+     */
+    public void releaseImage(JXLImage image) {
+        if (image != null)
+            spareCanvas = image.getBuffer(false);
+    }
+
+    /**
+     * Decodes the next displayed frame along with its timing.
+     * @return the frame, or null if there are no more
+     */
+    public AnimationFrame decodeAnimationFrame() throws IOException {
+        JXLImage image = decode();
+        if (image == null)
+            return null;
+        return new AnimationFrame(this, image, lastFrameHeader, imageHeader.getAnimationHeader());
+    }
+
+    /**
+     * Lists where every frame of the codestream is and what it depends on, reading only
+     * the frame headers and TOCs. The index is built once and then kept.
+     * @throws UnsupportedOperationException if the codestream isn't held in memory
+     */
+    public FrameIndex getFrameIndex() throws IOException {
+        if (frameIndex != null)
+            return frameIndex;
+        if (codestream == null)
+            throw new UnsupportedOperationException("Indexing frames requires the codestream to be in memory");
+        Loggers loggers = new Loggers(options, new PrintWriter(new OutputStreamWriter(System.err,
+            StandardCharsets.UTF_8)));
+        Bitreader reader = new Bitreader(codestream);
+        ImageHeader header = ImageHeader.read(loggers, reader, demuxer.getLevel());
+        if (header.getPreviewSize() != null)
+            skipPreviewFrame(reader, header, loggers);
+        JXLOptions indexOptions = new JXLOptions(options);
+        indexOptions.parseOnly = true;
+        List<FrameIndex.Entry> entries = new ArrayList<>();
+        int displayedFrame = 0;
+        FrameHeader frameHeader;
+        do {
+            reader.zeroPadToByte();
+            long offset = reader.getBitsCount() >> 3;
+            Frame frame = new Frame(reader, header, loggers, indexOptions, executor);
+            frameHeader = frame.readFrameHeader();
+            frame.readTOC();
+            long dataOffset = reader.getBitsCount() >> 3;
+            frame.skipFrameData();
+            entries.add(new FrameIndex.Entry(frameHeader, offset, dataOffset,
+                (reader.getBitsCount() >> 3) - dataOffset, displayedFrame));
+            if (frameHeader.isLast || frameHeader.duration != 0)
+                displayedFrame++;
+        } while (!frameHeader.isLast);
+        frameIndex = new FrameIndex(entries);
+        return frameIndex;
+    }
+
+    /**
+     * Moves to the given displayed frame, so that it's what decode returns next.
+     * Only the earlier frames that it, or the frames after it, depend on are decoded.
+     * @throws UnsupportedOperationException if the codestream isn't held in memory
+     */
+    public void seek(int displayedFrame) throws IOException {
+        FrameIndex index = getFrameIndex();
+        if (displayedFrame < 0 || displayedFrame >= index.getDisplayedFrameCount())
+            throw new IndexOutOfBoundsException("No such frame: " + displayedFrame);
+        if (imageHeader == null) {
+            readImageHeader(new Loggers(options, new PrintWriter(new OutputStreamWriter(System.err,
+                StandardCharsets.UTF_8))));
+        }
+        int target = index.displayedFrames[displayedFrame];
+        boolean[] needed = new boolean[target];
+        int initialState = index.markFramesNeeded(displayedFrame, needed);
+        int start = target;
+        for (int i = 0; i < target; i++) {
+            if (needed[i]) {
+                start = i;
+                break;
+            }
+        }
+        /* whatever is still needed from before the first frame has to be as it was then */
+        if (initialState != 0) {
+            reference = new ImageBuffer[4][];
+            lfBuffer = new ImageBuffer[5][];
+            canvas = new ImageBuffer[canvas.length];
+        }
+        visibleFrames = 0L;
+        invisibleFrames = 0L;
+        for (int i = 0; i < start; i++) {
+            if (index.frames[i].type != FrameFlags.LF_FRAME)
+                countFrame(index.frames[i].visible);
+        }
+        int offset = codestream.position() + (int)index.frames[start].offset;
+        bitreader = new Bitreader(IOHelper.slice(codestream, offset, codestream.limit() - offset));
+        frameNumber = start;
+        skippedPreview = true;
+        stopped = false;
+        skipFrames = new boolean[target];
+        for (int i = 0; i < target; i++)
+            skipFrames[i] = !needed[i];
+        discardOutput = true;
+        try {
+            for (int d = index.frames[start].displayedFrame; d < displayedFrame; d++)
+                decode();
+        } finally {
+            skipFrames = null;
+            discardOutput = false;
+        }
+    }
+
+    /* the factor at which the passes up to and including this one are complete */
+    private static int getDownsampling(PassesInfo passes, int pass) {
+        int downsampling = 8;
+        for (int i = 0; i < passes.lastPass.length; i++) {
+            if (passes.lastPass[i] <= pass)
+                downsampling = Math.min(downsampling, passes.downSample[i]);
+        }
+        return downsampling;
+    }
+
+    /**
+     * Renders a frame that's still being decoded onto a copy of the canvas.
+     * Noise and the restoration filters are left out, as they would be refined away anyway.
+     */
+    private JXLImage renderPreview(Frame frame, OpsinInverseMatrix matrix, Rectangle region) throws IOException {
+        return toImage(renderPreviewCanvas(frame, matrix), region, 1);
+    }
+
+    private ImageBuffer[] renderPreviewCanvas(Frame frame, OpsinInverseMatrix matrix) throws IOException {
+        Frame preview = new Frame(frame);
+        preview.finishPreview();
+        preview.upsample();
+        computePatches(preview);
+        preview.renderSplines();
+        performColorTransforms(matrix, preview);
+        Dimension size = imageHeader.getSize();
+        ImageBuffer[] previewCanvas = new ImageBuffer[canvas.length];
+        for (int c = 0; c < previewCanvas.length; c++) {
+            previewCanvas[c] = canvas[c] != null ? new ImageBuffer(canvas[c])
+                : new ImageBuffer(preview.getBuffer()[0].getType(), size.height, size.width, 0);
+        }
+        blendFrame(previewCanvas, preview);
+        return previewCanvas;
+    }
+
+    /**
+     * Renders the image at 1/8 of its size straight from the LF coefficients of a frame that
+     * covers the whole canvas and has no patches or splines, skipping everything else.
+     */
+    private JXLImage renderLFImage(Frame frame, OpsinInverseMatrix matrix) throws IOException {
+        ImageBuffer[] lfImage = frame.getLFImage();
+        performColorTransforms(matrix, frame.getFrameHeader().doYCbCr, lfImage);
+        Dimension size = imageHeader.getSize();
+        Rectangle bounds = new Rectangle(0, 0, MathHelper.ceilDiv(size.height, 8), MathHelper.ceilDiv(size.width, 8));
+        ImageBuffer[] lfCanvas = new ImageBuffer[canvas.length];
+        for (int c = 0; c < lfCanvas.length; c++)
+            lfCanvas[c] = cropBuffer(lfImage[c], bounds);
+        return toImage(lfCanvas, null, 1);
+    }
 }
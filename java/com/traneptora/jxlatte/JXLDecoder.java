@@ -6,9 +6,24 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.traneptora.jxlatte.io.Demuxer;
+import com.traneptora.jxlatte.io.IOHelper;
 import com.traneptora.jxlatte.io.PushbackInputStream;
+import com.traneptora.jxlatte.util.Rectangle;
+import com.traneptora.jxlatte.util.functional.FunctionalHelper;
 
 public class JXLDecoder implements Closeable {
     private Demuxer demuxer;
@@ -22,26 +37,157 @@ public class JXLDecoder implements Closeable {
         this(in, new JXLOptions());
     }
 
+    public JXLDecoder(Path path) throws IOException {
+        this(path, new JXLOptions());
+    }
+
+    /**
+     * Files are memory-mapped where possible, so the codestream is read without copying.
+     */
     public JXLDecoder(String filename, JXLOptions options) throws FileNotFoundException {
-        this(new BufferedInputStream(new FileInputStream(filename)), options);
+        try {
+            if (openMapped(Paths.get(filename), options))
+                return;
+        } catch (IOException | InvalidPathException ex) {
+            // fall back to reading it as a stream, which reports errors the usual way
+        }
+        openStream(new BufferedInputStream(new FileInputStream(filename)), options);
+    }
+
+    /**
+     * Files are memory-mapped where possible, so the codestream is read without copying.
+     */
+    public JXLDecoder(Path path, JXLOptions options) throws IOException {
+        if (!openMapped(path, options))
+            openStream(new BufferedInputStream(Files.newInputStream(path)), options);
     }
 
     public JXLDecoder(InputStream in, JXLOptions options) {
+        openStream(in, options);
+    }
+
+    private void openStream(InputStream in, JXLOptions options) {
         demuxer = new Demuxer(in);
         decoder = new JXLCodestreamDecoder(new PushbackInputStream(demuxer), options, demuxer);
     }
 
+    private boolean openMapped(Path path, JXLOptions options) throws IOException {
+        ByteBuffer file = IOHelper.mapFile(path);
+        if (file == null)
+            return false;
+        Demuxer mappedDemuxer = new Demuxer(file);
+        ByteBuffer codestream = mappedDemuxer.getCodestreamBuffer();
+        if (codestream == null)
+            return false;
+        demuxer = mappedDemuxer;
+        decoder = new JXLCodestreamDecoder(codestream, options, demuxer);
+        return true;
+    }
+
     public JXLImage decode() throws IOException {
         demuxer.reset();
         return decoder.decode();
     }
 
+    /**
+     * Decodes only the given region of the image, in oriented image pixels,
+     * skipping the groups of the last frame that don't contribute to it.
+     * @return an image of just that region, clipped to the image bounds
+     */
+    public JXLImage decode(Rectangle roi) throws IOException {
+        demuxer.reset();
+        return decoder.decode(roi);
+    }
+
+    /**
+     * Decodes the next image, handing its intermediate images to the listener
+     * as the passes of a progressive VarDCT image come in.
+     */
+    public JXLImage decode(ProgressiveListener listener) throws IOException {
+        demuxer.reset();
+        return decoder.decode(listener);
+    }
+
+    /**
+     * Decodes the next displayed frame along with its timing, see AnimationFrame.release
+     * @return the frame, or null if there are no more
+     */
+    public AnimationFrame nextFrame() throws IOException {
+        demuxer.reset();
+        return decoder.decodeAnimationFrame();
+    }
+
+    /**
+     * Iterates over the displayed frames. I/O errors are thrown unchecked, from hasNext.
+     * Releasing each frame before asking for the next lets them all reuse the same buffers.
+     */
+    public Iterator<AnimationFrame> frames() {
+        return new Iterator<AnimationFrame>() {
+            private AnimationFrame next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = nextFrame();
+                    } catch (IOException ex) {
+                        FunctionalHelper.sneakyThrow(ex);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public AnimationFrame next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                AnimationFrame frame = next;
+                next = null;
+                return frame;
+            }
+        };
+    }
+
+    public Stream<AnimationFrame> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(frames(),
+            Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Lists the frames of the codestream and what each one depends on.
+     * Only files that could be memory-mapped can be indexed.
+     * @throws UnsupportedOperationException if this decoder reads from a stream
+     */
+    public FrameIndex getFrameIndex() throws IOException {
+        return decoder.getFrameIndex();
+    }
+
+    /**
+     * Moves to the given displayed frame, so that the next call to nextFrame or decode returns it,
+     * decoding only the earlier frames that are depended upon.
+     * Only files that could be memory-mapped are seekable.
+     * @throws UnsupportedOperationException if this decoder reads from a stream
+     */
+    public void seek(int frame) throws IOException {
+        demuxer.reset();
+        decoder.seek(frame);
+    }
+
     public boolean atEnd() throws IOException {
         return decoder.atEnd();
     }
 
+    /**
+     * @return the threads this decoder runs on, for other work such as writing out its images.
+     * They are shut down when the decoder is closed.
+     */
+    public ExecutorService getExecutor() {
+        return decoder.getExecutor();
+    }
+
     @Override
     public void close() throws IOException {
+        decoder.close();
         demuxer.close();
     }
 }
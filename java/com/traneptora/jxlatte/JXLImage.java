@@ -2,7 +2,6 @@ package com.traneptora.jxlatte;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.stream.Stream;
 
 import com.traneptora.jxlatte.bundle.ImageHeader;
@@ -11,7 +10,6 @@ import com.traneptora.jxlatte.color.CIEXY;
 import com.traneptora.jxlatte.color.ColorEncodingBundle;
 import com.traneptora.jxlatte.color.ColorFlags;
 import com.traneptora.jxlatte.color.ColorManagement;
-import com.traneptora.jxlatte.util.Dimension;
 import com.traneptora.jxlatte.util.ImageBuffer;
 import com.traneptora.jxlatte.util.MathHelper;
 import com.traneptora.jxlatte.util.functional.FloatUnaryOperator;
@@ -40,10 +38,10 @@ public class JXLImage {
 
     protected JXLImage(ImageBuffer[] buffer, ImageHeader header) throws IOException {
         this.imageHeader = header;
-        Dimension size = imageHeader.getOrientedSize();
-        this.height = size.height;
-        this.width = size.width;
-        this.buffer = buffer;
+        /* not necessarily the whole image, if only a region of it was decoded */
+        this.height = buffer[0].height;
+        this.width = buffer[0].width;
+        this.buffer = Stream.of(buffer).map(ImageBuffer::toFlat).toArray(ImageBuffer[]::new);
         ColorEncodingBundle bundle = header.getColorEncoding();
         this.colorEncoding = bundle.colorEncoding;
         this.alphaIndex = header.hasAlpha() ? header.getAlphaIndex(0) : -1;
@@ -114,23 +112,28 @@ public class JXLImage {
     private JXLImage toneMapLinear(CIEPrimaries primaries, CIEXY whitePoint) {
         if (CIEPrimaries.matches(primariesXY, primaries) && CIEXY.matches(whiteXY, whitePoint))
             return this;
-        float[][][] buffers = new float[3][][];
+        float[][] buffers = new float[3][];
         for (int c = 0; c < 3; c++) {
             buffer[c].castToFloat(bitDepths[c]);
-            buffers[c] = buffer[c].getFloatBuffer();
+            buffers[c] = buffer[c].getFlatFloatBuffer();
         }
         float[][] conversionMatrix =
             ColorManagement.getConversionMatrix(primaries, whitePoint, this.primariesXY, this.whiteXY);
+        /* the copy shares the layout of the source, so the row offsets match */
         JXLImage image = new JXLImage(this, false);
-        float[][][] ibuffers = Stream.of(image.buffer).map(ImageBuffer::getFloatBuffer).toArray(float[][][]::new);
+        float[][] ibuffers = Stream.of(image.buffer).limit(3)
+            .map(ImageBuffer::getFlatFloatBuffer).toArray(float[][]::new);
         final float[] rgb = new float[3];
+        final int[] rows = new int[3];
         for (int y = 0; y < image.height; y++) {
+            for (int c = 0; c < 3; c++)
+                rows[c] = buffer[c].getRowOffset(y);
             for (int x = 0; x < image.width; x++) {
                 for (int c = 0; c < 3; c++)
-                    rgb[c] = buffers[c][y][x];
+                    rgb[c] = buffers[c][rows[c] + x];
                 MathHelper.matrixMutliply3InPlace(conversionMatrix, rgb);
                 for (int c = 0; c < 3; c++)
-                    ibuffers[c][y][x] = rgb[c];
+                    ibuffers[c][rows[c] + x] = rgb[c];
             }
         }
         image.primariesXY = primaries;
@@ -145,24 +148,27 @@ public class JXLImage {
             return this;
         JXLImage image = new JXLImage(this, false);
         ImageBuffer[] nbuffer = new ImageBuffer[image.buffer.length + 2];
-        nbuffer[0] = new ImageBuffer(image.buffer[0].getType(), image.buffer[0].height, image.buffer[0].width);
-        nbuffer[1] = new ImageBuffer(image.buffer[0].getType(), image.buffer[0].height, image.buffer[0].width);
+        nbuffer[0] = new ImageBuffer(image.buffer[0].getType(), image.buffer[0].height, image.buffer[0].width, 0);
+        nbuffer[1] = new ImageBuffer(image.buffer[0].getType(), image.buffer[0].height, image.buffer[0].width, 0);
         for (int c = 2; c < nbuffer.length; c++) {
             nbuffer[c] = image.buffer[c - 2];
         }
         image.buffer = nbuffer;
-        for (int c = 0; c < 3; c++) {
-            for (int y = 0; y < buffer[0].height; y++)
-                System.arraycopy(buffer[0].getBackingBuffer()[y], 0, image.buffer[c].getBackingBuffer()[y], 0, buffer[0].width);
-        }
-        for (int c = 3; c < image.buffer.length; c++) {
-            for (int y = 0; y < buffer[0].height; y++)
-                System.arraycopy(buffer[c - 2].getBackingBuffer()[y], 0, image.buffer[c].getBackingBuffer()[y], 0, buffer[0].width);
-        }
+        for (int c = 0; c < 3; c++)
+            copyBuffer(buffer[0], image.buffer[c]);
+        for (int c = 3; c < image.buffer.length; c++)
+            copyBuffer(buffer[c - 2], image.buffer[c]);
         image.colorEncoding = ColorFlags.CE_RGB;
         return image;
     }
 
+    private static void copyBuffer(ImageBuffer src, ImageBuffer dest) {
+        Object srcB = src.getFlatBackingBuffer();
+        Object destB = dest.getFlatBackingBuffer();
+        for (int y = 0; y < src.height; y++)
+            System.arraycopy(srcB, src.getRowOffset(y), destB, dest.getRowOffset(y), src.width);
+    }
+
     public JXLImage flattenColor() {
         if (this.colorEncoding == ColorFlags.CE_GRAY)
             return this;
@@ -172,12 +178,9 @@ public class JXLImage {
             nbuffer[c - 2] = image.buffer[c];
         }
         image.buffer = nbuffer;
-        for (int y = 0; y < buffer[1].height; y++)
-            System.arraycopy(buffer[1].getBackingBuffer()[y], 0, image.buffer[0].getBackingBuffer()[y], 0, buffer[1].width);
-        for (int c = 1; c < image.buffer.length; c++) {
-            for (int y = 0; y < buffer[0].height; y++)
-                System.arraycopy(buffer[c + 2].getBackingBuffer()[y], 0, image.buffer[c].getBackingBuffer()[y], 0, buffer[1].width);
-        }
+        copyBuffer(buffer[1], image.buffer[0]);
+        for (int c = 1; c < image.buffer.length; c++)
+            copyBuffer(buffer[c + 2], image.buffer[c]);
         image.colorEncoding = ColorFlags.CE_GRAY;
         return image;
     }
@@ -215,27 +218,42 @@ public class JXLImage {
         if (transfer != ColorFlags.TF_LINEAR)
             return linearize().determinePeak();
         int c = colorEncoding == ColorFlags.CE_GRAY ? 0 : 1;
-        if (buffer[c].isInt()) {
-            return Stream.of(buffer[c].getIntBuffer()).mapToInt(MathHelper::max).max().getAsInt() / (float)~(~0 << bitDepths[c]);
+        ImageBuffer b = buffer[c];
+        if (b.isInt()) {
+            int[] ib = b.getFlatIntBuffer();
+            int max = Integer.MIN_VALUE;
+            for (int y = 0; y < b.height; y++) {
+                int row = b.getRowOffset(y);
+                for (int x = 0; x < b.width; x++)
+                    max = Math.max(max, ib[row + x]);
+            }
+            return max / (float)~(~0 << bitDepths[c]);
         } else {
-            return Stream.of(buffer[c].getFloatBuffer()).map(MathHelper::max).max(Comparator.naturalOrder()).get();
+            float[] fb = b.getFlatFloatBuffer();
+            float max = Float.NEGATIVE_INFINITY;
+            for (int y = 0; y < b.height; y++) {
+                int row = b.getRowOffset(y);
+                for (int x = 0; x < b.width; x++)
+                    max = Math.max(max, fb[row + x]);
+            }
+            return max;
         }
     }
 
     private JXLImage transfer(FloatUnaryOperator op) {
         int colors = getColorChannelCount();
-        float[][][] buffers = new float[colors][][];
+        float[][] buffers = new float[colors][];
         for (int c = 0; c < colors; c++) {
             buffer[c].castToFloatWithMax(~(~0 << bitDepths[c]));
-            buffers[c] = buffer[c].getFloatBuffer();
+            buffers[c] = buffer[c].getFlatFloatBuffer();
         }
         JXLImage image = new JXLImage(this, false);
         for (int c = 0; c < colors; c++) {
-            float[][] b = image.buffer[c].getFloatBuffer();
+            float[] b = image.buffer[c].getFlatFloatBuffer();
             for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    b[y][x] = op.applyAsFloat(buffers[c][y][x]);
-                }
+                int row = buffer[c].getRowOffset(y);
+                for (int x = 0; x < width; x++)
+                    b[row + x] = op.applyAsFloat(buffers[c][row + x]);
             }
         }
         return image;
@@ -243,16 +261,16 @@ public class JXLImage {
 
     private void transferInPlace(FloatUnaryOperator op) {
         int colors = getColorChannelCount();
-        float[][][] buffers = new float[colors][][];
+        float[][] buffers = new float[colors][];
         for (int c = 0; c < colors; c++) {
             buffer[c].castToFloatWithMax(bitDepths[c]);
-            buffers[c] = buffer[c].getFloatBuffer();
+            buffers[c] = buffer[c].getFlatFloatBuffer();
         }
         for (int c = 0; c < colors; c++) {
             for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    buffers[c][y][x] = op.applyAsFloat(buffers[c][y][x]);
-                }
+                int row = buffer[c].getRowOffset(y);
+                for (int x = 0; x < width; x++)
+                    buffers[c][row + x] = op.applyAsFloat(buffers[c][row + x]);
             }
         }
     }
@@ -3,6 +3,7 @@ package com.traneptora.jxlatte;
 import java.util.zip.Deflater;
 
 import com.traneptora.jxlatte.io.Loggers;
+import com.traneptora.jxlatte.util.Rectangle;
 
 public class JXLOptions {
 
@@ -18,6 +19,14 @@ public class JXLOptions {
     public static final int PEAK_DETECT_ON = 1;
     public static final int PEAK_DETECT_OFF = 2;
 
+    /* these match the PNG filter type byte, except for adaptive */
+    public static final int PNG_FILTER_NONE = 0;
+    public static final int PNG_FILTER_SUB = 1;
+    public static final int PNG_FILTER_UP = 2;
+    public static final int PNG_FILTER_AVERAGE = 3;
+    public static final int PNG_FILTER_PAETH = 4;
+    public static final int PNG_FILTER_ADAPTIVE = 5;
+
     public boolean debug = false;
     public int outputFormat = OUTPUT_DEFAULT;
     public int verbosity = Loggers.LOG_BASE;
@@ -29,6 +38,11 @@ public class JXLOptions {
     public int threads = 0;
     public boolean parseOnly = false;
     public boolean forceSrgbIcc = false;
+    public int pngFilter = PNG_FILTER_NONE;
+    /* region of interest in the oriented image, or null to decode all of it */
+    public Rectangle roi = null;
+    /* decode at 1/downsampling of the size, one of 1, 2, 4, or 8 */
+    public int downsampling = 1;
 
     public String input = null;
     public String output = null;
@@ -49,6 +63,9 @@ public class JXLOptions {
         this.threads = options.threads;
         this.parseOnly = options.parseOnly;
         this.forceSrgbIcc = options.forceSrgbIcc;
+        this.pngFilter = options.pngFilter;
+        this.roi = options.roi != null ? new Rectangle(options.roi) : null;
+        this.downsampling = options.downsampling;
 
         this.input = options.input;
         this.output = options.output;
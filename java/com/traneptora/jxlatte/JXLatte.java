@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Stream;
 
 import com.traneptora.jxlatte.io.InvalidBitstreamException;
@@ -36,11 +37,15 @@ public class JXLatte {
         }
     }
 
-    private static void writePNG(String outputFilename, JXLImage image, JXLOptions options) throws IOException {
+    private static void writePNG(String outputFilename, JXLImage image, JXLOptions options,
+            ExecutorService executor) throws IOException {
         boolean hdr = options.hdr == JXLOptions.HDR_AUTO ? image.isHDR() : options.hdr == JXLOptions.HDR_ON;
         int bitDepth = hdr ? 16 : options.outputDepth;
         PNGWriter writer = new PNGWriter(image, bitDepth, options.outputCompression, hdr, options.peakDetect);
         writer.setWriteSrgbIcc(options.forceSrgbIcc);
+        writer.setThreads(options.threads);
+        writer.setExecutor(executor);
+        writer.setFilter(options.pngFilter);
         writeImage(writer::write, outputFilename);
     }
 
@@ -77,9 +82,13 @@ public class JXLatte {
             "        Run peak detection when writing SDR PNGs",
             "    --png-force-srgb-icc",
             "        Force writing an ICC profile to the output PNG even when writing sRGB",
+            "    --png-filter=<none|sub|up|average|paeth|adaptive>",
+            "        Use this scanline filter for PNG output, adaptive picks one per row",
             "",
             "    --draw-varblocks",
             "        Show varblocks for VarDCT images",
+            "    --downsample=<1|2|4|8>",
+            "        Decode at 1/N of the size, skipping work that doesn't show at that scale",
             "    --threads=N",
             "        Use N threads (0 for auto)",
             "    --parse-only",
@@ -185,6 +194,14 @@ public class JXLatte {
                     System.exit(1);
                 }
                 return true;
+            case "png-filter":
+                List<String> filters = Arrays.asList("none", "sub", "up", "average", "paeth", "adaptive");
+                options.pngFilter = filters.indexOf(valueL);
+                if (options.pngFilter < 0) {
+                    System.err.format("jxlatte: Unknown --png-filter: %s%n", value);
+                    System.exit(1);
+                }
+                return true;
             case "png-peak-detect":
                 if (arrayContains(valueL, "", "auto")) {
                     options.peakDetect = JXLOptions.PEAK_DETECT_AUTO;
@@ -228,6 +245,14 @@ public class JXLatte {
             case "draw-varblocks":
                 options.renderVarblocks = parseFlag(key, value, valueL);
                 return true;
+            case "downsample":
+                options.downsampling = Arrays.asList("1", "2", "4", "8").indexOf(valueL);
+                if (options.downsampling < 0) {
+                    System.err.format("jxlatte: Unknown --downsample: %s%n", value);
+                    System.exit(1);
+                }
+                options.downsampling = 1 << options.downsampling;
+                return true;
             case "threads":
                 try {
                     options.threads = Integer.parseInt(valueL);
@@ -287,10 +312,10 @@ public class JXLatte {
     }
 
     private static boolean writeImage(JXLOptions options, JXLDecoder decoder) {
-        JXLImage image = null;
+        AnimationFrame frame = null;
         boolean atEnd = false;
         try {
-            image = decoder.decode();
+            frame = decoder.nextFrame();
             atEnd = decoder.atEnd();
         } catch (EOFException | InvalidBitstreamException ex) {
             System.err.println("jxlatte: Invalid input bitstream");
@@ -313,8 +338,9 @@ public class JXLatte {
             System.exit(4);
         }
 
-        if (image == null)
+        if (frame == null)
             return options.parseOnly && !atEnd;
+        JXLImage image = frame.image;
 
         if (options.output != null) {
             try {
@@ -323,7 +349,7 @@ public class JXLatte {
                     writePFM(options.output, image, options);
                 } else if (options.outputFormat == JXLOptions.OUTPUT_PNG) {
                     System.err.println("Decoded to pixels, writing PNG output.");
-                    writePNG(options.output, image, options);
+                    writePNG(options.output, image, options, decoder.getExecutor());
                 }
             } catch (FileNotFoundException fnfe) {
                 System.err.println("jxlatte: Could not open output file for writing");
@@ -339,6 +365,7 @@ public class JXLatte {
         } else {
             System.err.println("Decoded to pixels, discarding output.");
         }
+        frame.release();
 
         return true;
     }
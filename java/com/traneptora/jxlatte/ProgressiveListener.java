@@ -0,0 +1,17 @@
+package com.traneptora.jxlatte;
+
+import java.io.IOException;
+
+/**
+ * Receives the intermediate images of a progressive VarDCT image while it's decoded.
+ */
+@FunctionalInterface
+public interface ProgressiveListener {
+    /**
+     * @param image the image decoded so far
+     * @param pass the last pass included, or -1 if there's only the LF coefficients so far
+     * @param downsampling the factor at which the image is already complete, 8 for the LF
+     * @return false to stop decoding, in which case decode returns this image
+     */
+    public boolean imageDecoded(JXLImage image, int pass, int downsampling) throws IOException;
+}
@@ -1,6 +1,5 @@
 package com.traneptora.jxlatte.bundle;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -539,14 +538,15 @@ public class ImageHeader {
             return decodedICC;
         if (encodedICC == null)
             return null;
-        Bitreader commandReader = new Bitreader(new ByteArrayInputStream(encodedICC));
+        Bitreader commandReader = new Bitreader(encodedICC);
         int outputSize = commandReader.readICCVarint();
         int commandSize = commandReader.readICCVarint();
         // readICCVarint is always a multiple of bytes
         int commandStart = (int)(commandReader.getBitsCount() >> 3);
         int dataStart = commandStart + commandSize;
-        Bitreader dataReader = new Bitreader(new ByteArrayInputStream(
-            encodedICC, dataStart, encodedICC.length - dataStart));
+        if (dataStart < 0 || dataStart > encodedICC.length)
+            throw new InvalidBitstreamException("ICC command stream overflows the encoded ICC");
+        Bitreader dataReader = new Bitreader(encodedICC, dataStart, encodedICC.length - dataStart);
         int headerSize = Math.min(128, outputSize);
         decodedICC = new byte[outputSize];
         int resultPos = 0;
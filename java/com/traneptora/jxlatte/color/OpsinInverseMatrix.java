@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.Arrays;
 
 import com.traneptora.jxlatte.io.Bitreader;
+import com.traneptora.jxlatte.util.ImageBuffer;
 import com.traneptora.jxlatte.util.MathHelper;
 
 public class OpsinInverseMatrix {
@@ -102,7 +103,7 @@ public class OpsinInverseMatrix {
     /**
      * Inverts in place
      */
-    public void invertXYB(float[][][] buffer, float intensityTarget) {
+    public void invertXYB(ImageBuffer[] buffer, float intensityTarget) {
         if (buffer.length < 3)
             throw new IllegalArgumentException("Can only XYB on 3 channels");
         final float itScale = 255f / intensityTarget;
@@ -117,26 +118,27 @@ public class OpsinInverseMatrix {
         final float cob0 = -cbrtOpsinBias[0];
         final float cob1 = -cbrtOpsinBias[1];
         final float cob2 = -cbrtOpsinBias[2];
-        final float[][] xybXRBuffer = buffer[0];
-        final float[][] xybYGBuffer = buffer[1];
-        final float[][] xybBBBuffer = buffer[2];
-        for (int y = 0; y < buffer[0].length; y++) {
-            final float[] xybXRBufferRow = xybXRBuffer[y];
-            final float[] xybYGBufferRow = xybYGBuffer[y];
-            final float[] xybBBBufferRow = xybBBBuffer[y];
-            for (int x = 0; x < buffer[0][y].length; x++) {
-                final float xybX = xybXRBufferRow[x];
-                final float xybY = xybYGBufferRow[x];
-                final float xybB = xybBBBufferRow[x];
+        final float[] xybXRBuffer = buffer[0].getFlatFloatBuffer();
+        final float[] xybYGBuffer = buffer[1].getFlatFloatBuffer();
+        final float[] xybBBBuffer = buffer[2].getFlatFloatBuffer();
+        final int width = buffer[0].width;
+        for (int y = 0; y < buffer[0].height; y++) {
+            final int xrRow = buffer[0].getRowOffset(y);
+            final int ygRow = buffer[1].getRowOffset(y);
+            final int bbRow = buffer[2].getRowOffset(y);
+            for (int x = 0; x < width; x++) {
+                final float xybX = xybXRBuffer[xrRow + x];
+                final float xybY = xybYGBuffer[ygRow + x];
+                final float xybB = xybBBBuffer[bbRow + x];
                 final float gammaL = xybY + xybX + cob0;
                 final float gammaM = xybY - xybX + cob1;
                 final float gammaS = xybB + cob2;
                 final float mixL = (gammaL * gammaL) * gammaL + ob0;
                 final float mixM = (gammaM * gammaM) * gammaM + ob1;
                 final float mixS = (gammaS * gammaS) * gammaS + ob2;
-                xybXRBufferRow[x] = scaledMatrix[0] * mixL + scaledMatrix[1] * mixM + scaledMatrix[2] * mixS;
-                xybYGBufferRow[x] = scaledMatrix[3] * mixL + scaledMatrix[4] * mixM + scaledMatrix[5] * mixS;
-                xybBBBufferRow[x] = scaledMatrix[6] * mixL + scaledMatrix[7] * mixM + scaledMatrix[8] * mixS;
+                xybXRBuffer[xrRow + x] = scaledMatrix[0] * mixL + scaledMatrix[1] * mixM + scaledMatrix[2] * mixS;
+                xybYGBuffer[ygRow + x] = scaledMatrix[3] * mixL + scaledMatrix[4] * mixM + scaledMatrix[5] * mixS;
+                xybBBBuffer[bbRow + x] = scaledMatrix[6] * mixL + scaledMatrix[7] * mixM + scaledMatrix[8] * mixS;
             }
         }
     }
@@ -31,10 +31,11 @@ public class ANSSymbolDistribution extends SymbolDistribution {
     }).map(a -> new VLCTableEntry(a[0], a[1])).toArray(VLCTableEntry[]::new));
 
     private int[] frequencies;
-    private int[] cutoffs;
-    private int[] symbols;
-    private int[] offsets;
-    private int bucketMask;
+    /*
+     * for each of the 4096 state slots, the symbol in the top 8 bits,
+     * its frequency minus one in the next 12, and the offset in the bottom 12
+     */
+    private int[] decodeTable;
 
     public ANSSymbolDistribution(Bitreader reader, int logAlphabetSize) throws IOException {
         this.logAlphabetSize = logAlphabetSize;
@@ -139,39 +140,53 @@ public class ANSSymbolDistribution extends SymbolDistribution {
 
     @Override
     public int readSymbol(Bitreader reader, EntropyState stateObj) throws IOException {
-        int state =  stateObj.hasState() ? stateObj.getState() : reader.readBits(32);
-        int index = state & 0xFFF;
-        int i = index >>> logBucketSize;
-        int pos = index & bucketMask;
-        boolean greater = pos >= cutoffs[i];
-        int symbol = greater ? symbols[i] : i;
-        int offset = greater ? offsets[i] + pos : pos;
-        state = frequencies[symbol] * (state >>> 12) + offset;
-        if (state == (state & 0xffff))
+        int state = stateObj.hasState ? stateObj.state : reader.readBits(32);
+        int entry = decodeTable[state & 0xFFF];
+        state = (((entry >>> 12) & 0xFFF) + 1) * (state >>> 12) + (entry & 0xFFF);
+        if ((state & 0xFFFF0000) == 0)
             state = (state << 16) | reader.readBits(16);
-        stateObj.setState(state);
-        return symbol;
+        stateObj.state = state;
+        stateObj.hasState = true;
+        return entry >>> 24;
+    }
+
+    @Override
+    public void readIntegers(Bitreader reader, EntropyState stateObj, int[] out, int off, int len)
+            throws IOException {
+        if (len <= 0)
+            return;
+        int[] table = decodeTable;
+        int state = stateObj.hasState ? stateObj.state : reader.readBits(32);
+        for (int i = off; i < off + len; i++) {
+            int entry = table[state & 0xFFF];
+            state = (((entry >>> 12) & 0xFFF) + 1) * (state >>> 12) + (entry & 0xFFF);
+            if ((state & 0xFFFF0000) == 0)
+                state = (state << 16) | reader.readBits(16);
+            out[i] = config.readInteger(reader, entry >>> 24);
+        }
+        stateObj.state = state;
+        stateObj.hasState = true;
     }
 
     private void generateAliasMapping(int uniqPos) {
 
         logBucketSize = 12 - logAlphabetSize;
-        bucketMask = (1 << logBucketSize) - 1;
+        int bucketMask = (1 << logBucketSize) - 1;
         Deque<Integer> overfull = new ArrayDeque<>();
         Deque<Integer> underfull = new ArrayDeque<>();
         int bucketSize = 1 << logBucketSize;
         int tableSize = 1 << logAlphabetSize;
 
-        symbols = new int[tableSize];
-        cutoffs = new int[tableSize];
-        offsets = new int[tableSize];
+        int[] symbols = new int[tableSize];
+        int[] cutoffs = new int[tableSize];
+        int[] offsets = new int[tableSize];
+        decodeTable = new int[1 << 12];
 
         if (uniqPos >= 0) {
-            for (int i = 0; i < tableSize; i++) {
-                symbols[i] = uniqPos;
-                offsets[i] = i * bucketSize;
-                cutoffs[i] = 0;
-            }
+            /* every slot decodes to the one symbol, at an offset of the slot itself */
+            int entry = (uniqPos << 24) | (((1 << 12) - 1) << 12);
+            for (int index = 0; index < decodeTable.length; index++)
+                decodeTable[index] = entry | index;
             return;
         }
 
@@ -209,13 +224,22 @@ public class ANSSymbolDistribution extends SymbolDistribution {
                 offsets[i] -= cutoffs[i];
             }
         }
+
+        for (int index = 0; index < decodeTable.length; index++) {
+            int i = index >>> logBucketSize;
+            int pos = index & bucketMask;
+            boolean greater = pos >= cutoffs[i];
+            int symbol = greater ? symbols[i] : i;
+            int offset = greater ? offsets[i] + pos : pos;
+            int frequency = symbol < alphabetSize ? frequencies[symbol] : 0;
+            decodeTable[index] = (symbol << 24) | (((frequency - 1) & 0xFFF) << 12) | (offset & 0xFFF);
+        }
     }
 
     @Override
     public String toString() {
         return String.format(
-                "ANSSymbolDistribution [config=%s, logBucketSize=%s, alphabetSize=%s, logAlphabetSize=%s, frequencies=%s, cutoffs=%s, symbols=%s, offsets=%s]",
-                config, logBucketSize, alphabetSize, logAlphabetSize, Arrays.toString(frequencies),
-                Arrays.toString(cutoffs), Arrays.toString(symbols), Arrays.toString(offsets));
+                "ANSSymbolDistribution [config=%s, logBucketSize=%s, alphabetSize=%s, logAlphabetSize=%s, frequencies=%s]",
+                config, logBucketSize, alphabetSize, logAlphabetSize, Arrays.toString(frequencies));
     }
 }
@@ -3,8 +3,9 @@ package com.traneptora.jxlatte.entropy;
 import java.util.Objects;
 
 public class EntropyState {
-    private int state;
-    private boolean hasState;
+    /* accessed directly by the decoding loops */
+    int state;
+    boolean hasState;
 
     public EntropyState() {
         hasState = false;
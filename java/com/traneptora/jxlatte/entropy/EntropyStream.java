@@ -6,6 +6,7 @@ import java.util.Arrays;
 import com.traneptora.jxlatte.io.Bitreader;
 import com.traneptora.jxlatte.io.InvalidBitstreamException;
 import com.traneptora.jxlatte.io.Loggers;
+import com.traneptora.jxlatte.util.ScratchArena;
 
 public class EntropyStream {
 
@@ -24,6 +25,9 @@ public class EntropyStream {
         {-6, 7}, {7, 6}, {-7, 6}, {8, 5}, {7, 7}, {-7, 7}, {8, 6}, {8, 7},
     };
 
+    private static final int WINDOW_SIZE = 1 << 20;
+    private static final int INITIAL_WINDOW_SIZE = 1 << 12;
+
     private boolean usesLZ77;
     private int lz77MinSymbol;
     private int lz77MinLength;
@@ -54,8 +58,7 @@ public class EntropyStream {
         } else {
             boolean useMtf = reader.readBool();
             EntropyStream nested = new EntropyStream(loggers, reader, 1, numDists <= 2);
-            for (int i = 0; i < numDists; i++)
-                clusterMap[i] = nested.readSymbol(reader, 0);
+            nested.readSymbols(reader, 0, clusterMap, 0, numDists);
             if (!nested.validateFinalState())
                 throw new InvalidBitstreamException("Nested distribution");
             if (useMtf) {
@@ -94,8 +97,6 @@ public class EntropyStream {
         this.clusterMap = stream.clusterMap;
         this.logAlphabetSize = stream.logAlphabetSize;
         this.dists = stream.dists;
-        if (this.usesLZ77)
-            window = new int[1 << 20];
         this.loggers = stream.loggers;
     }
 
@@ -117,7 +118,6 @@ public class EntropyStream {
             lz77MinLength = reader.readU32(3, 0, 4, 0, 5, 2, 9, 8);
             numDists++;
             lzLengthConfig = new HybridIntegerConfig(reader, 8);
-            window = new int[1 << 20];
         }
 
         clusterMap = new int[numDists];
@@ -160,6 +160,16 @@ public class EntropyStream {
         ansState.reset();
     }
 
+    /**
+     * Gives the LZ77 window back to the scratch arena of this thread,
+     * once nothing more is going to be decoded.
+     */
+    public void releaseWindow() {
+        if (window != null)
+            ScratchArena.get().giveWindow(window);
+        window = null;
+    }
+
     public boolean validateFinalState() {
         if (!ansState.hasState())
             return true;
@@ -174,14 +184,69 @@ public class EntropyStream {
         return readSymbol(reader, context, 0);
     }
 
-    public int readSymbol(Bitreader reader, int context, int distanceMultiplier) throws IOException {
-        if (numToCopy77 > 0) {
-            int hybridInt = window[copyPos77++ & 0xFFFFF];
-            numToCopy77--;
-            window[numDecoded77++ & 0xFFFFF] = hybridInt;
-            symbolCount++;
-            return hybridInt;
+    /**
+     * The window only grows to its full size once that many symbols have been decoded,
+     * so short streams don't pay for it. Until then, it never wraps around, so the stale
+     * contents of a window borrowed from the scratch arena are never read.
+     */
+    private void ensureWindow(int count) {
+        if (window == null) {
+            window = ScratchArena.get().takeWindow();
+            if (window == null)
+                window = new int[INITIAL_WINDOW_SIZE];
         }
+        int length = window.length;
+        if (length == WINDOW_SIZE || numDecoded77 + count <= length)
+            return;
+        while (length < WINDOW_SIZE && length < numDecoded77 + count)
+            length <<= 1;
+        window = Arrays.copyOf(window, length);
+    }
+
+    private int readCopied() {
+        ensureWindow(1);
+        int mask = window.length - 1;
+        /* nothing has been decoded yet, so this copies the zeroes of an empty window */
+        int hybridInt = copyPos77 == numDecoded77 ? 0 : window[copyPos77 & mask];
+        copyPos77++;
+        numToCopy77--;
+        window[numDecoded77++ & mask] = hybridInt;
+        symbolCount++;
+        return hybridInt;
+    }
+
+    /**
+     * Copies len symbols of the current LZ77 match into out, in runs no longer than
+     * the match distance, so the source of each run has already been written.
+     */
+    private void copyRun(int[] out, int off, int len) {
+        ensureWindow(len);
+        int mask = window.length - 1;
+        int distance = numDecoded77 - copyPos77;
+        if (distance == 0) {
+            for (int i = 0; i < len; i++)
+                out[off + i] = readCopied();
+            return;
+        }
+        int end = off + len;
+        while (off < end) {
+            int src = copyPos77 & mask;
+            int dest = numDecoded77 & mask;
+            int n = Math.min(end - off, distance);
+            n = Math.min(n, Math.min(window.length - src, window.length - dest));
+            System.arraycopy(window, src, window, dest, n);
+            System.arraycopy(window, src, out, off, n);
+            copyPos77 += n;
+            numDecoded77 += n;
+            off += n;
+        }
+        numToCopy77 -= len;
+        symbolCount += len;
+    }
+
+    public int readSymbol(Bitreader reader, int context, int distanceMultiplier) throws IOException {
+        if (numToCopy77 > 0)
+            return readCopied();
 
         if (context >= clusterMap.length)
             throw new IllegalArgumentException("Context cannot be bigger than bundle length");
@@ -199,56 +264,79 @@ public class EntropyStream {
             throw ioe;
         }
         if (usesLZ77 && token >= lz77MinSymbol) {
-            SymbolDistribution lz77dist = dists[clusterMap[clusterMap.length - 1]];
-            numToCopy77 = lz77MinLength + readHybridInteger(reader, lzLengthConfig, token - lz77MinSymbol);
-            token = lz77dist.readSymbol(reader, ansState);
-            int distance = readHybridInteger(reader, lz77dist.config, token);
-            if (distanceMultiplier == 0) {
-                distance++;
-            } else if (distance < 120) {
-                distance = SPECIAL_DISTANCES[distance][0] + distanceMultiplier * SPECIAL_DISTANCES[distance][1];
-                if (distance < 1)
-                    distance = 1;
-            } else {
-                distance -= 119;
-            }
-            if (distance > (1 << 20))
-                distance = 1 << 20;
-            if (distance > numDecoded77)
-                distance = numDecoded77;
-            copyPos77 = numDecoded77 - distance;
-            return readSymbol(reader, context, distanceMultiplier);
+            startCopy(reader, token, distanceMultiplier);
+            return readCopied();
         }
 
         int hybridInt;
         try {
-            hybridInt = readHybridInteger(reader, dist.config, token);
+            hybridInt = dist.config.readInteger(reader, token);
         } catch (IOException ioe) {
             loggers.log(Loggers.LOG_TRACE, "context, dist: %d, %d", context, clusterMap[context]);
             loggers.log(Loggers.LOG_TRACE, "Symbol count: %d", symbolCount);
             loggers.log(Loggers.LOG_TRACE, "Entropy Stream: %s", this);
             throw ioe;
         }
-        if (usesLZ77)
-            window[numDecoded77++ & 0xFFFFF] = hybridInt;
+        if (usesLZ77) {
+            ensureWindow(1);
+            window[numDecoded77++ & (window.length - 1)] = hybridInt;
+        }
 
         symbolCount++;
         return hybridInt;
     }
 
-    private int readHybridInteger(Bitreader reader, HybridIntegerConfig config, int token) throws IOException {
-        int split = 1 << config.splitExponent;
-        if (token < split)
-            return token;
-        int n = config.splitExponent - config.lsbInToken - config.msbInToken
-            + ((token - split) >>> (config.msbInToken + config.lsbInToken));
-        if (n > 32)
-            throw new InvalidBitstreamException("n is too large");
-        int low = token & ((1 << config.lsbInToken) - 1);
-        token >>>= config.lsbInToken;
-        token &= (1 << config.msbInToken) - 1;
-        token |= 1 << config.msbInToken;
-        return (((token << n) | reader.readBits(n)) << config.lsbInToken) | low;
+    private void startCopy(Bitreader reader, int token, int distanceMultiplier) throws IOException {
+        SymbolDistribution lz77dist = dists[clusterMap[clusterMap.length - 1]];
+        numToCopy77 = lz77MinLength + lzLengthConfig.readInteger(reader, token - lz77MinSymbol);
+        token = lz77dist.readSymbol(reader, ansState);
+        int distance = lz77dist.config.readInteger(reader, token);
+        if (distanceMultiplier == 0) {
+            distance++;
+        } else if (distance < 120) {
+            distance = SPECIAL_DISTANCES[distance][0] + distanceMultiplier * SPECIAL_DISTANCES[distance][1];
+            if (distance < 1)
+                distance = 1;
+        } else {
+            distance -= 119;
+        }
+        if (distance > WINDOW_SIZE)
+            distance = WINDOW_SIZE;
+        if (distance > numDecoded77)
+            distance = numDecoded77;
+        copyPos77 = numDecoded77 - distance;
+    }
+
+    public void readSymbols(Bitreader reader, int context, int[] out, int off, int len) throws IOException {
+        readSymbols(reader, context, 0, out, off, len);
+    }
+
+    /**
+     * Decodes len symbols of the same context into out. Equivalent to calling readSymbol
+     * len times, but without LZ77 the whole run is decoded in one tight loop, and with it
+     * matches are copied out of the window in bulk.
+     */
+    public void readSymbols(Bitreader reader, int context, int distanceMultiplier,
+            int[] out, int off, int len) throws IOException {
+        if (usesLZ77) {
+            int end = off + len;
+            while (off < end) {
+                if (numToCopy77 > 0) {
+                    int n = Math.min(numToCopy77, end - off);
+                    copyRun(out, off, n);
+                    off += n;
+                } else {
+                    out[off++] = readSymbol(reader, context, distanceMultiplier);
+                }
+            }
+            return;
+        }
+        if (context >= clusterMap.length)
+            throw new IllegalArgumentException("Context cannot be bigger than bundle length");
+        if (clusterMap[context] >= dists.length)
+            throw new InvalidBitstreamException("Cluster Map points to nonexisted distribution");
+        dists[clusterMap[context]].readIntegers(reader, ansState, out, off, len);
+        symbolCount += len;
     }
 
     @Override
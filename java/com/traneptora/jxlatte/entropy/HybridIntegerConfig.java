@@ -32,6 +32,24 @@ public class HybridIntegerConfig {
             throw new InvalidBitstreamException("msbInToken + lsbInToken is too large");
     }
 
+    /**
+     * Reads the rest of the hybrid integer whose token has just been decoded.
+     */
+    public int readInteger(Bitreader reader, int token) throws IOException {
+        int split = 1 << splitExponent;
+        if (token < split)
+            return token;
+        int n = splitExponent - lsbInToken - msbInToken
+            + ((token - split) >>> (msbInToken + lsbInToken));
+        if (n > 32)
+            throw new InvalidBitstreamException("n is too large");
+        int low = token & ((1 << lsbInToken) - 1);
+        token >>>= lsbInToken;
+        token &= (1 << msbInToken) - 1;
+        token |= 1 << msbInToken;
+        return (((token << n) | reader.readBits(n)) << lsbInToken) | low;
+    }
+
     @Override
     public String toString() {
         return this.splitExponent + "-" + this.msbInToken + "-" + this.lsbInToken;
@@ -11,4 +11,12 @@ public abstract class SymbolDistribution {
     protected int logAlphabetSize;
 
     public abstract int readSymbol(Bitreader reader, EntropyState state) throws IOException;
+
+    /**
+     * Decodes a run of hybrid integers from this distribution into out.
+     */
+    public void readIntegers(Bitreader reader, EntropyState state, int[] out, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++)
+            out[i] = config.readInteger(reader, readSymbol(reader, state));
+    }
 }
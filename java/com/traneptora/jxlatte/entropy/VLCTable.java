@@ -7,31 +7,47 @@ import java.util.Objects;
 import com.traneptora.jxlatte.io.Bitreader;
 import com.traneptora.jxlatte.io.InvalidBitstreamException;
 
+/**
+ * A two-level prefix code lookup table, packed into an int[].
+ *
+ * The root table is indexed by the next ROOT_BITS bits. Codes longer than that
+ * go through a subtable per root entry, placed after the root table. Entries are
+ * either (symbol << 8) | length, or for root entries pointing to a subtable,
+ * (subtable offset << 8) | SUBTABLE | subtable bits.
+ */
 public class VLCTable {
-    private static final VLCTableEntry ZERO = new VLCTableEntry(0, 0);
+    private static final int ROOT_BITS = 8;
+    private static final int SUBTABLE = 0x80;
+    private static final int LENGTH_MASK = 0x1F;
+    private static final int EMPTY = -1 << 8;
 
-    private VLCTableEntry[] table;
+    private int[] table;
+    /* the length of the longest code */
     private int bits;
+    private int rootBits;
 
     public VLCTable(int bits, VLCTableEntry[] table) {
         this.bits = bits;
-        this.table = table;
+        this.rootBits = bits;
+        this.table = new int[table.length];
+        for (int i = 0; i < table.length; i++)
+            this.table[i] = (table[i].symbol << 8) | table[i].length;
     }
 
     public VLCTable(int bits, int[] lengths, int[] symbols) throws InvalidBitstreamException {
-        this.bits = bits;
-        VLCTableEntry[] table = new VLCTableEntry[1 << bits];
         int[] codes = new int[lengths.length];
         int[] nLengths = new int[lengths.length];
         int[] nSymbols = new int[lengths.length];
         int count = 0;
+        int maxLength = 0;
         long code = 0;
         for (int i = 0; i < lengths.length; i++) {
             int len = lengths[i];
             if (len > 0) {
                 nLengths[count] = len;
                 nSymbols[count] = symbols != null ? symbols[i] : i;
-                codes[count] = (int)code;
+                codes[count] = Integer.reverse((int)code);
+                maxLength = Math.max(maxLength, len);
                 count++;
             } else if (len < 0) {
                 len = -len;
@@ -44,47 +60,80 @@ public class VLCTable {
         }
         if (code != (1L << 32))
             throw new IllegalArgumentException("Not enough VLC codes");
+        if (maxLength > bits)
+            throw new InvalidBitstreamException("Table size too small");
+
+        this.bits = maxLength;
+        this.rootBits = Math.min(maxLength, ROOT_BITS);
+        int rootSize = 1 << rootBits;
+        int rootMask = rootSize - 1;
+
+        /* each subtable is as wide as the longest code sharing its root entry */
+        int[] subBits = new int[rootSize];
         for (int i = 0; i < count; i++) {
-            if (nLengths[i] <= bits) {
-                int index = Integer.reverse(codes[i]);
-                int number = 1 << (bits - nLengths[i]);
-                int offset = 1 << nLengths[i];
-                for (int j = 0; j < number; j++) {
-                    VLCTableEntry oldEntry = Objects.requireNonNullElse(table[index], ZERO);
-                    int oldSymbol = oldEntry.symbol;
-                    int oldLen = oldEntry.length;
-                    if ((oldLen > 0 || oldSymbol > 0) && (oldLen != nLengths[i] || oldSymbol != nSymbols[i]))
-                        throw new InvalidBitstreamException("Illegal VLC codes");
-                    table[index] = new VLCTableEntry(nSymbols[i], nLengths[i]);
-                    index += offset;
-                }
-            } else {
-                throw new InvalidBitstreamException("Table size too small");
+            if (nLengths[i] > rootBits) {
+                int root = codes[i] & rootMask;
+                subBits[root] = Math.max(subBits[root], nLengths[i] - rootBits);
+            }
+        }
+        int size = rootSize;
+        int[] subOffsets = new int[rootSize];
+        for (int root = 0; root < rootSize; root++) {
+            if (subBits[root] > 0) {
+                subOffsets[root] = size;
+                size += 1 << subBits[root];
             }
         }
-        for (int i = 0; i < table.length; i++) {
-            if (table[i] == null)
-                table[i] = new VLCTableEntry(-1, 0);
-            else if (table[i].length == 0)
-                table[i].symbol = -1;
+
+        int[] table = new int[size];
+        Arrays.fill(table, EMPTY);
+        for (int root = 0; root < rootSize; root++) {
+            if (subBits[root] > 0)
+                table[root] = (subOffsets[root] << 8) | SUBTABLE | subBits[root];
+        }
+
+        for (int i = 0; i < count; i++) {
+            int len = nLengths[i];
+            int entry = (nSymbols[i] << 8) | len;
+            int start;
+            int number;
+            int index;
+            if (len <= rootBits) {
+                start = 0;
+                index = codes[i] & rootMask;
+                number = 1 << (rootBits - len);
+            } else {
+                int root = codes[i] & rootMask;
+                start = subOffsets[root];
+                index = (codes[i] >>> rootBits) & ((1 << subBits[root]) - 1);
+                len -= rootBits;
+                number = 1 << (subBits[root] - len);
+            }
+            for (int j = 0; j < number; j++) {
+                int k = start + index + (j << len);
+                if (table[k] != EMPTY)
+                    throw new InvalidBitstreamException("Illegal VLC codes");
+                table[k] = entry;
+            }
         }
         this.table = table;
     }
 
     public int getVLC(Bitreader reader) throws IOException {
-        int index = reader.showBits(bits);
-        int symbol = table[index].symbol;
-        int length = table[index].length;
-        reader.skipBits(length);
-        return symbol;
+        int index = reader.peekBits(bits);
+        int entry = table[index & ~(-1 << rootBits)];
+        if ((entry & SUBTABLE) != 0)
+            entry = table[(entry >>> 8) + ((index >>> rootBits) & ~(-1 << (entry & LENGTH_MASK)))];
+        reader.skipBits(entry & LENGTH_MASK);
+        return entry >> 8;
     }
 
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
-        result = prime * result + Arrays.deepHashCode(table);
-        result = prime * result + Objects.hash(bits);
+        result = prime * result + Arrays.hashCode(table);
+        result = prime * result + Objects.hash(bits, rootBits);
         return result;
     }
 
@@ -97,6 +146,6 @@ public class VLCTable {
         if (getClass() != obj.getClass())
             return false;
         VLCTable other = (VLCTable) obj;
-        return Arrays.deepEquals(table, other.table) && bits == other.bits;
+        return Arrays.equals(table, other.table) && bits == other.bits && rootBits == other.rootBits;
     }
 }
@@ -1,19 +1,21 @@
 package com.traneptora.jxlatte.frame;
 
-import java.io.ByteArrayInputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.function.IntUnaryOperator;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import com.traneptora.jxlatte.JXLOptions;
+import com.traneptora.jxlatte.bundle.ExtraChannelInfo;
+import com.traneptora.jxlatte.bundle.ExtraChannelType;
 import com.traneptora.jxlatte.bundle.ImageHeader;
 import com.traneptora.jxlatte.entropy.EntropyStream;
 import com.traneptora.jxlatte.frame.features.XorShiro;
@@ -34,13 +36,20 @@ import com.traneptora.jxlatte.util.ImageBuffer;
 import com.traneptora.jxlatte.util.MathHelper;
 import com.traneptora.jxlatte.util.Point;
 import com.traneptora.jxlatte.util.Rectangle;
-import com.traneptora.jxlatte.util.functional.ExceptionalRunnable;
+import com.traneptora.jxlatte.util.ScratchArena;
+import com.traneptora.jxlatte.util.functional.ExceptionalFunction;
 import com.traneptora.jxlatte.util.functional.FunctionalHelper;
 
 public class Frame {
 
     public static final int[] cMap = new int[]{1, 0, 2};
 
+    /* the furthest the edge-preserving filter reaches past a sample */
+    private static final int EPF_BORDER = 3;
+
+    /* how far past a region of interest the frame is still decoded, enough for LF smoothing and the filters */
+    private static final int REGION_MARGIN = 64;
+
     private static Point[] epfCross = new Point[] {
         new Point(0, 0),
         new Point(0, -1), new Point(0, 1),
@@ -68,6 +77,13 @@ public class Frame {
     private int numLFGroups;
 
     private List<CompletableFuture<Bitreader>> bitreaders = new ArrayList<>();
+    /* reads the sections of a stream in the background, null otherwise */
+    private Thread sectionReader;
+    private volatile boolean sectionsCancelled = false;
+    /* how many sections have been split off, only up to date once the reader is done */
+    private int sectionsRead = 0;
+    /* where the only section starts, if there's one */
+    private long sectionStart;
     private int[] tocPermutation;
     private int[] tocLengths;
     private LFGlobal lfGlobal;
@@ -83,14 +99,23 @@ public class Frame {
     private int lfGroupRowStride;
     private MATree globalTree;
     private Rectangle bounds;
+    /* the part of the frame that is decoded, in frame pixels, or null for all of it */
+    private Rectangle region;
+    /* called after the LF groups with -1 and after each pass, returns false to stop decoding */
+    private ExceptionalFunction<Integer, Boolean> passCallback;
+    private boolean callbackAtLF = false;
+    private boolean stoppedEarly = false;
     private Loggers loggers;
     private JXLOptions options;
+    private ExecutorService executor;
 
-    public Frame(Bitreader reader, ImageHeader globalMetadata, Loggers loggers, JXLOptions options) {
+    public Frame(Bitreader reader, ImageHeader globalMetadata, Loggers loggers, JXLOptions options,
+            ExecutorService executor) {
         this.globalReader = reader;
         this.globalMetadata = globalMetadata;
         this.loggers = loggers;
         this.options = options;
+        this.executor = executor;
     }
 
     public Frame(Frame frame) {
@@ -115,11 +140,69 @@ public class Frame {
         }
         this.loggers = frame.loggers;
         this.options = frame.options;
+        this.executor = frame.executor;
         this.bounds = this.header.bounds;
         this.groupRowStride = frame.groupRowStride;
         this.lfGroupRowStride = frame.lfGroupRowStride;
     }
 
+    /**
+     * Only decode the groups needed to render the given region of the image, in image pixels.
+     * Samples of this frame outside of that region are left unspecified.
+     * Must be called after readFrameHeader and before decodeFrame.
+     */
+    public void setRegionOfInterest(Rectangle imageRegion) {
+        Point lower = imageRegion.computeLowerCorner();
+        int up = header.upsampling;
+        int y0 = Math.floorDiv(imageRegion.origin.y - bounds.origin.y, up) - REGION_MARGIN;
+        int x0 = Math.floorDiv(imageRegion.origin.x - bounds.origin.x, up) - REGION_MARGIN;
+        int y1 = -Math.floorDiv(bounds.origin.y - lower.y, up) + REGION_MARGIN;
+        int x1 = -Math.floorDiv(bounds.origin.x - lower.x, up) + REGION_MARGIN;
+        region = new Rectangle(getPaddedFrameSize()).computeIntersection(new Rectangle(y0, x0, y1 - y0, x1 - x0));
+    }
+
+    /**
+     * Report VarDCT frames as they are decoded, with pass -1 once only the LF coefficients
+     * are there if atLF is set, see renderLFPreview and getLFImage, and then after each
+     * pass, at which point the buffers hold the frame so far. The callback can return
+     * false to stop decoding.
+     * Stopping at the LF holds the pass groups back until it's all there, so only ask for
+     * it if it's needed. Must be called before decodeFrame.
+     */
+    public void setPassCallback(ExceptionalFunction<Integer, Boolean> passCallback, boolean atLF) {
+        this.passCallback = passCallback;
+        this.callbackAtLF = atLF;
+    }
+
+    /**
+     * @return true if the pass callback stopped decodeFrame before the frame was complete
+     */
+    public boolean isStoppedEarly() {
+        return stoppedEarly;
+    }
+
+    private boolean isGroupNeeded(int groupID) {
+        if (region == null)
+            return true;
+        Point pos = getGroupLocation(groupID);
+        return !region.computeIntersection(new Rectangle(pos.y << header.logGroupDim,
+            pos.x << header.logGroupDim, header.groupDim, header.groupDim)).isEmpty();
+    }
+
+    private boolean isLFGroupNeeded(int lfGroupID) {
+        if (region == null)
+            return true;
+        Point pos = getLFGroupLocation(lfGroupID);
+        return !region.computeIntersection(new Rectangle(pos.y * header.lfGroupDim,
+            pos.x * header.lfGroupDim, header.lfGroupDim, header.lfGroupDim)).isEmpty();
+    }
+
+    /* the part of a buffer of the given size that has to be filtered */
+    private Rectangle getFilterRegion(int height, int width) {
+        Rectangle all = new Rectangle(0, 0, height, width);
+        return region != null ? all.computeIntersection(region) : all;
+    }
+
     public FrameHeader readFrameHeader() throws IOException {
         globalReader.zeroPadToByte();
         this.header = new FrameHeader(globalReader, this.globalMetadata);
@@ -177,19 +260,85 @@ public class Frame {
         globalReader.zeroPadToByte();
     }
 
-    private byte[] readBuffer(int index) throws IOException {
-        int length = tocLengths[index];
-        byte[] buffer = new byte[length];
-        int read = globalReader.read(buffer, 0, length);
-        if (read < length)
-            throw new EOFException("Unable to read full TOC entry");
-        return buffer;
+
+    /**
+     * Splits the frame into its sections. Over a buffer that only takes views of it, but a stream
+     * is read in the background, on a thread of its own as it blocks on I/O, so that each group
+     * can be decoded as soon as its section is in.
+     */
+    private void readSections() throws IOException {
+        if (tocLengths.length == 1) {
+            sectionStart = globalReader.getBitsCount();
+            bitreaders.get(0).complete(globalReader);
+            return;
+        }
+        if (!globalReader.isStreaming()) {
+            for (int i = 0; i < tocLengths.length; i++)
+                bitreaders.get(i).complete(globalReader.readSlice(tocLengths[i]));
+            sectionsRead = tocLengths.length;
+            return;
+        }
+        sectionReader = new Thread(() -> {
+            try {
+                for (int i = 0; i < tocLengths.length; i++) {
+                    if (sectionsCancelled)
+                        throw new CancellationException();
+                    bitreaders.get(i).complete(globalReader.readSlice(tocLengths[i]));
+                    sectionsRead = i + 1;
+                }
+            } catch (Throwable ex) {
+                /* otherwise anything waiting on the rest would wait forever */
+                bitreaders.forEach(f -> f.completeExceptionally(ex));
+            }
+        }, "jxlatte-reader");
+        sectionReader.setDaemon(true);
+        sectionReader.start();
     }
 
-    private Bitreader getBitreader(int index) {
+    /**
+     * Skips past whatever is left of a frame that stopped early, so the next frame can be read.
+     */
+    public void skipUnreadSections() throws IOException {
+        if (!stoppedEarly)
+            throw new IllegalStateException("This frame wasn't stopped early");
+        if (tocLengths.length == 1) {
+            long remaining = 8L * tocLengths[0] - (globalReader.getBitsCount() - sectionStart);
+            if (remaining < 0)
+                throw new InvalidBitstreamException("Read past the end of the frame");
+            globalReader.skipBits(remaining);
+            return;
+        }
+        for (int i = sectionsRead; i < tocLengths.length; i++)
+            globalReader.skipBits(8L * tocLengths[i]);
+    }
+
+    /**
+     * Leaves the sections after the one being read unread, and waits for the reader to let go of the stream.
+     */
+    private void stopReadingSections() {
+        if (sectionReader == null)
+            return;
+        sectionsCancelled = true;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                sectionReader.join();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private CompletableFuture<Bitreader> getBitreaderFuture(int index) {
         int i = tocLengths.length <= 1 ? 0 : tocPermutation != null ? tocPermutation[index] : index;
-        CompletableFuture<Bitreader> reader = bitreaders.get(i);
-        return FunctionalHelper.join(reader);
+        return bitreaders.get(i);
+    }
+
+    private Bitreader getBitreader(int index) {
+        return FunctionalHelper.join(getBitreaderFuture(index));
     }
 
     public static int[] readPermutation(Bitreader reader, EntropyStream stream, int size, int skip) throws IOException {
@@ -214,6 +363,16 @@ public class Frame {
         return permutation;
     }
 
+    /**
+     * Returns a flat buffer with at least the given border, mirrored, copying if necessary.
+     */
+    private static ImageBuffer withMirroredBorder(ImageBuffer ib, int border) {
+        if (!ib.isFlat() || ib.getBorder() < border)
+            ib = new ImageBuffer(ib, border);
+        ib.mirrorBorder();
+        return ib;
+    }
+
     private ImageBuffer performUpsampling(ImageBuffer ib, int c) {
         int color = getColorChannelCount();
         int k;
@@ -226,57 +385,78 @@ public class Frame {
         int depth = c < color ? globalMetadata.getBitDepthHeader().bitsPerSample :
             globalMetadata.getExtraChannelInfo(c - color).bitDepth.bitsPerSample;
         ib.castToFloat(depth);
-        float[][] buffer = ib.getFloatBuffer();
+        ImageBuffer input = withMirroredBorder(ib, 2);
+        final float[] buffer = input.getFlatFloatBuffer();
+        final int stride = input.getStride();
         int l = MathHelper.ceilLog1p(k - 1) - 1;
         float[][][][] upWeights = globalMetadata.getUpWeights()[l];
-        float[][] newBuffer = new float[buffer.length * k][];
-        for (int y = 0; y < buffer.length; y++) {
+        ImageBuffer output = new ImageBuffer(ImageBuffer.TYPE_FLOAT, input.height * k, input.width * k, 0);
+        final float[] newBuffer = output.getFlatFloatBuffer();
+        for (int y = 0; y < input.height; y++) {
+            final int topLeft = input.getRowOffset(y - 2) - 2;
             for (int ky = 0; ky < k; ky++) {
-                newBuffer[y*k + ky] = new float[buffer[y].length * k];
-                for (int x = 0; x < buffer[y].length; x++) {
+                final int newRow = output.getRowOffset(y*k + ky);
+                for (int x = 0; x < input.width; x++) {
                     for (int kx = 0; kx < k; kx++) {
-                        float[][] weights = upWeights[ky][kx];
+                        final float[][] weights = upWeights[ky][kx];
                         float total = 0f;
                         float min = Float.MAX_VALUE;
                         float max = Float.MIN_VALUE;
                         for (int iy = 0; iy < 5; iy++) {
+                            final float[] weightsY = weights[iy];
+                            final int row = topLeft + iy * stride + x;
                             for (int ix = 0; ix < 5; ix++) {
-                                int newY = MathHelper.mirrorCoordinate(y + iy - 2, buffer.length);
-                                int newX = MathHelper.mirrorCoordinate(x + ix - 2, buffer[newY].length);
-                                float sample = buffer[newY][newX];
+                                float sample = buffer[row + ix];
                                 if (sample < min)
                                     min = sample;
                                 if (sample > max)
                                     max = sample;
-                                total += weights[iy][ix] * sample;
+                                total += weightsY[ix] * sample;
                             }
                         }
-                        newBuffer[y*k + ky][x*k + kx] = total < min ? min : total > max ? max : total;
+                        newBuffer[newRow + x*k + kx] = total < min ? min : total > max ? max : total;
                     }
                 }
             }
         }
-        return new ImageBuffer(newBuffer);
+        return output;
     }
 
-    private void decodeLFGroups(ImageBuffer[] lfBuffer) throws IOException {
-
-        List<ModularChannel> lfReplacementChannels = new ArrayList<>();
-        List<Integer> lfReplacementChannelIndicies = new ArrayList<>();
+    private List<Integer> getLFReplacementChannelIndices() {
+        List<Integer> indices = new ArrayList<>();
         for (int i = 0; i < lfGlobal.globalModular.getEncodedChannelCount(); i++) {
             ModularChannel chan = lfGlobal.globalModular.getChannel(i);
-            if (!chan.isDecoded()) {
-                if (chan.vshift >= 3 && chan.hshift >= 3) {
-                    lfReplacementChannelIndicies.add(i);
-                    lfReplacementChannels.add(new ModularChannel(chan));
-                }
-            }
+            if (!chan.isDecoded() && chan.vshift >= 3 && chan.hshift >= 3)
+                indices.add(i);
         }
+        return indices;
+    }
+
+    /**
+     * Queues up the LF groups, each of which starts decoding as soon as its section has been read.
+     */
+    private List<CompletableFuture<LFGroup>> decodeLFGroups(ImageBuffer[] lfBuffer) throws IOException {
+
+        List<ModularChannel> lfReplacementChannels = new ArrayList<>();
+        for (int i : getLFReplacementChannelIndices())
+            lfReplacementChannels.add(new ModularChannel(lfGlobal.globalModular.getChannel(i)));
 
+        // LF groups read from the LF frame concurrently, so cast it once up front
+        if ((header.flags & FrameFlags.USE_LF_FRAME) != 0) {
+            for (int c = 0; c < 3; c++)
+                lfBuffer[c].castToFloat(globalMetadata.getBitDepthHeader().bitsPerSample);
+        }
+
+        List<CompletableFuture<LFGroup>> lfGroupFutures = new ArrayList<>(numLFGroups);
+        /* filled in as the groups finish, the pass groups of each one wait for it */
         lfGroups = new LFGroup[numLFGroups];
 
-        for (int lfGroupID = 0; lfGroupID < numLFGroups; lfGroupID++) {
-            Bitreader reader = getBitreader(1 + lfGroupID);
+        for (int lfGroupID0 = 0; lfGroupID0 < numLFGroups; lfGroupID0++) {
+            final int lfGroupID = lfGroupID0;
+            if (!isLFGroupNeeded(lfGroupID)) {
+                lfGroupFutures.add(CompletableFuture.completedFuture(null));
+                continue;
+            }
             ModularChannel[] replaced = lfReplacementChannels.stream().map(ModularChannel::new)
                 .toArray(ModularChannel[]::new);
             for (ModularChannel info : replaced) {
@@ -288,11 +468,22 @@ public class Frame {
                 info.size.height = Math.min(info.size.height - info.origin.y, lfGroupHeight);
                 info.size.width = Math.min(info.size.width - info.origin.x, lfGroupWidth);
             }
-            lfGroups[lfGroupID] = new LFGroup(reader, this, lfGroupID, replaced, lfBuffer);
+            lfGroupFutures.add(getBitreaderFuture(1 + lfGroupID).thenApplyAsync(ExceptionalFunction.of(
+                reader -> lfGroups[lfGroupID] = new LFGroup(reader, this, lfGroupID, replaced, lfBuffer)), executor));
         }
 
+        return lfGroupFutures;
+    }
+
+    private void populateLFGroups(List<CompletableFuture<LFGroup>> lfGroupFutures) {
+        List<Integer> lfReplacementChannelIndicies = getLFReplacementChannelIndices();
+        /* the groups fill in lfGroups themselves, which pipelined pass groups are already reading */
+        FunctionalHelper.join(null, lfGroupFutures.iterator());
+
         /* populate decoded LF Groups */
         for (int lfGroupID = 0; lfGroupID < numLFGroups; lfGroupID++) {
+            if (lfGroups[lfGroupID] == null)
+                continue;
             for (int j = 0; j < lfReplacementChannelIndicies.size(); j++) {
                 int index = lfReplacementChannelIndicies.get(j);
                 ModularChannel channel = lfGlobal.globalModular.getChannel(index);
@@ -314,16 +505,30 @@ public class Frame {
         }
     }
 
-    private void decodePassGroups() throws IOException {
+    /**
+     * Reads HFGlobal and queues up the pass groups, each of which starts decoding as soon as
+     * its section has been read and, for VarDCT, its LF group is done.
+     */
+    private List<CompletableFuture<PassGroup>> queuePassGroups(List<CompletableFuture<LFGroup>> lfGroupFutures)
+            throws IOException {
+        Bitreader hfGlobalReader = getBitreader(1 + numLFGroups);
+        if (header.encoding == FrameFlags.VARDCT)
+            hfGlobal = new HFGlobal(hfGlobalReader, this);
+        else
+            hfGlobal = null;
+        decodePasses(hfGlobalReader);
 
         int numPasses = passes.length;
-        PassGroup[][] passGroups = new PassGroup[numPasses][numGroups];
+        List<CompletableFuture<PassGroup>> passGroupFutures = new ArrayList<>(numPasses * numGroups);
 
         for (int pass0 = 0; pass0 < numPasses; pass0++) {
             final int pass = pass0;
             for (int group0 = 0; group0 < numGroups; group0++) {
                 final int group = group0;
-                Bitreader reader = getBitreader(2 + numLFGroups + pass * numGroups + group);
+                if (!isGroupNeeded(group)) {
+                    passGroupFutures.add(CompletableFuture.completedFuture(null));
+                    continue;
+                }
                 ModularChannel[] replaced = Stream.of(passes[pass].replacedChannels).filter(Objects::nonNull)
                     .map(ModularChannel::new).toArray(ModularChannel[]::new);
                 for (ModularChannel info : replaced) {
@@ -335,11 +540,34 @@ public class Frame {
                     info.size.height = Math.min(info.size.height - info.origin.y, groupHeight);
                     info.size.width = Math.min(info.size.width - info.origin.x, groupWidth);
                 }
-                passGroups[pass][group] = new PassGroup(reader, Frame.this, pass, group, replaced);
+                CompletableFuture<Bitreader> section = getBitreaderFuture(2 + numLFGroups + pass * numGroups + group);
+                CompletableFuture<Bitreader> readerFuture = header.encoding != FrameFlags.VARDCT ? section
+                    : lfGroupFutures.get(getLFGroupIDForGroup(group)).thenCompose(lfg -> section);
+                passGroupFutures.add(readerFuture.thenApplyAsync(ExceptionalFunction.of(
+                    reader -> new PassGroup(reader, Frame.this, pass, group, replaced)), executor));
             }
         }
+        return passGroupFutures;
+    }
+
+    private void decodePassGroups(List<CompletableFuture<PassGroup>> passGroupFutures) throws IOException {
 
+        int numPasses = passes.length;
+
+        float[][][] buffers = null;
+        if (header.encoding == FrameFlags.VARDCT) {
+            buffers = new float[3][][];
+            for (int c = 0; c < 3; c++) {
+                buffer[c].castToFloat(globalMetadata.getBitDepthHeader().bitsPerSample);
+                buffers[c] = buffer[c].getFloatBuffer();
+            }
+        }
+
+        /* later passes keep decoding while earlier ones are finished off */
+        PassGroup[][] passGroups = new PassGroup[numPasses][];
         for (int pass = 0; pass < numPasses; pass++) {
+            passGroups[pass] = FunctionalHelper.join(PassGroup[]::new,
+                passGroupFutures.subList(pass * numGroups, (pass + 1) * numGroups).iterator());
             int j = 0;
             for (int i = 0; i < passes[pass].replacedChannels.length; i++) {
                 if (passes[pass].replacedChannels[i] == null)
@@ -347,6 +575,8 @@ public class Frame {
                 ModularChannel channel = lfGlobal.globalModular.getChannel(i);
                 channel.allocate();
                 for (int group = 0; group < numGroups; group++) {
+                    if (passGroups[pass][group] == null)
+                        continue;
                     ModularChannel newChannelInfo = passGroups[pass][group].modularStream.getChannel(j);
                     int[][] buff = newChannelInfo.buffer;
                     for (int y = 0; y < buff.length; y++) {
@@ -356,22 +586,122 @@ public class Frame {
                 }
                 j++;
             }
+            if (header.encoding != FrameFlags.VARDCT)
+                continue;
+            // groups write disjoint regions, and each pass builds on the previous one
+            List<CompletableFuture<Void>> futures = new ArrayList<>(numGroups);
+            for (int group0 = 0; group0 < numGroups; group0++) {
+                final int group = group0;
+                final PassGroup passGroup = passGroups[pass][group];
+                if (passGroup == null)
+                    continue;
+                final PassGroup prev = pass > 0 ? passGroups[pass - 1][group] : null;
+                final float[][][] frameBuffers = buffers;
+                futures.add(CompletableFuture.runAsync(() -> {
+                    ScratchArena arena = ScratchArena.get();
+                    float[][][] scratchBlocks = arena.takeBlocks();
+                    try {
+                        passGroup.invertVarDCT(frameBuffers, prev, scratchBlocks);
+                    } finally {
+                        arena.giveBlocks(scratchBlocks);
+                    }
+                }, executor));
+            }
+            FunctionalHelper.join(null, futures.iterator());
+            if (passCallback != null && pass + 1 < numPasses && !passCallback.apply(pass)) {
+                passGroupFutures.forEach(f -> f.cancel(false));
+                stoppedEarly = true;
+                return;
+            }
         }
+    }
 
-        if (header.encoding == FrameFlags.VARDCT) {
-            float[][][] buffers = new float[3][][];
-            for (int c = 0; c < 3; c++) {
-                buffer[c].castToFloat(globalMetadata.getBitDepthHeader().bitsPerSample);
-                buffers[c] = buffer[c].getFloatBuffer();
+    /**
+     * Fills the color channels with the LF coefficients, each one covering its whole 8x8 block.
+     * Meant for the pass callback before the first pass, the passes overwrite all of it.
+     */
+    public void renderLFPreview() {
+        for (int c = 0; c < 3; c++) {
+            buffer[c].castToFloat(globalMetadata.getBitDepthHeader().bitsPerSample);
+            float[][] buff = buffer[c].getFloatBuffer();
+            int height = buffer[c].height;
+            int width = buffer[c].width;
+            for (LFGroup lfg : lfGroups) {
+                if (lfg == null)
+                    continue;
+                Point pos = getLFGroupLocation(lfg.lfGroupID);
+                int y0 = (pos.y * header.lfGroupDim) >> header.jpegUpsamplingY[c];
+                int x0 = (pos.x * header.lfGroupDim) >> header.jpegUpsamplingX[c];
+                float[][] lf = lfg.lfCoeff.dequantLFCoeff[c];
+                for (int by = 0; by < lf.length; by++) {
+                    int yEnd = Math.min(y0 + (by << 3) + 8, height);
+                    for (int y = y0 + (by << 3); y < yEnd; y++) {
+                        for (int bx = 0; bx < lf[by].length; bx++) {
+                            int x = x0 + (bx << 3);
+                            if (x < width)
+                                Arrays.fill(buff[y], x, Math.min(x + 8, width), lf[by][bx]);
+                        }
+                    }
+                }
             }
-            for (int pass = 0; pass < numPasses; pass++) {
-                for (int group = 0; group < numGroups; group++) {
-                    PassGroup passGroup = passGroups[pass][group];
-                    PassGroup prev = pass > 0 ? passGroups[pass - 1][group] : null;
-                    passGroup.invertVarDCT(buffers, prev);
+        }
+    }
+
+    /**
+     * @return the LF coefficients of the color channels, one sample for each 8x8 block of
+     * the padded frame, with any chroma subsampling undone by repeating samples
+     */
+    public ImageBuffer[] getLFImage() {
+        Dimension paddedSize = getPaddedFrameSize();
+        int height = paddedSize.height >> 3;
+        int width = paddedSize.width >> 3;
+        int lfGroupBlocks = header.lfGroupDim >> 3;
+        ImageBuffer[] lfImage = new ImageBuffer[3];
+        for (int c = 0; c < 3; c++) {
+            int shiftY = header.jpegUpsamplingY[c];
+            int shiftX = header.jpegUpsamplingX[c];
+            lfImage[c] = new ImageBuffer(ImageBuffer.TYPE_FLOAT, height, width, 0);
+            float[] buff = lfImage[c].getFlatFloatBuffer();
+            for (LFGroup lfg : lfGroups) {
+                if (lfg == null)
+                    continue;
+                Point pos = getLFGroupLocation(lfg.lfGroupID);
+                float[][] lf = lfg.lfCoeff.dequantLFCoeff[c];
+                int y0 = pos.y * lfGroupBlocks;
+                int x0 = pos.x * lfGroupBlocks;
+                int yEnd = Math.min(y0 + (lf.length << shiftY), height);
+                for (int y = y0; y < yEnd; y++) {
+                    float[] lfRow = lf[(y - y0) >> shiftY];
+                    int row = lfImage[c].getRowOffset(y);
+                    int xEnd = Math.min(x0 + (lfRow.length << shiftX), width);
+                    for (int x = x0; x < xEnd; x++)
+                        buff[row + x] = lfRow[(x - x0) >> shiftX];
                 }
             }
         }
+        return lfImage;
+    }
+
+    /**
+     * Brings a copy of a frame that is still being decoded into the state decodeFrame
+     * leaves a complete one in, minus the restoration filters. Extra channels only arrive
+     * with the complete frame, so any alpha is left opaque.
+     */
+    public void finishPreview() {
+        invertSubsampling();
+        flattenBuffers();
+        int colors = getColorChannelCount();
+        for (int i = 0; i < globalMetadata.getExtraChannelCount(); i++) {
+            ExtraChannelInfo info = globalMetadata.getExtraChannelInfo(i);
+            if (info.type != ExtraChannelType.ALPHA)
+                continue;
+            ImageBuffer alpha = buffer[colors + i];
+            if (alpha.isFloat()) {
+                Arrays.fill(alpha.getFlatFloatBuffer(), 1.0f);
+            } else {
+                Arrays.fill(alpha.getFlatIntBuffer(), ~(~0 << info.bitDepth.bitsPerSample));
+            }
+        }
     }
 
     public void decodeFrame(ImageBuffer[] lfBuffer) throws IOException {
@@ -379,18 +709,15 @@ public class Frame {
             throw new IllegalStateException("Already decoded this frame");
         this.decoded = true;
 
-        CompletableFuture.runAsync(ExceptionalRunnable.of(() -> {
-            if (tocLengths.length != 1) {
-                for (int i = 0; i < tocLengths.length; i++) {
-                    byte[] buffer = readBuffer(i);
-                    bitreaders.get(i).complete(new Bitreader(new ByteArrayInputStream(buffer)));
-                }
-            } else {
-                 bitreaders.get(0).complete(globalReader);
-            }
-        }));
+        readSections();
 
         lfGlobal = new LFGlobal(getBitreader(0), this);
+        /*
+         * a single section has to be read through in order, and squeeze and
+         * palette deltas spread samples too far for groups to be skipped
+         */
+        if (region != null && (tocLengths.length == 1 || !lfGlobal.globalModular.hasOnlyPointwiseTransforms()))
+            region = null;
         Dimension paddedSize = getPaddedFrameSize();
 
         int colors = getColorChannelCount();
@@ -413,18 +740,33 @@ public class Frame {
                 channelSize.height, channelSize.width);
         }
 
-        decodeLFGroups(lfBuffer);
-
-        Bitreader hfGlobalReader = getBitreader(1 + numLFGroups);
-        if (header.encoding == FrameFlags.VARDCT)
-            hfGlobal = new HFGlobal(hfGlobalReader, this);
-        else
-            hfGlobal = null;
-        decodePasses(hfGlobalReader);
+        List<CompletableFuture<LFGroup>> lfGroupFutures = decodeLFGroups(lfBuffer);
+        boolean stopAtLF = passCallback != null && callbackAtLF && header.encoding == FrameFlags.VARDCT;
+        /*
+         * the pass groups don't have to wait for all of the LF, unless decoding might stop there
+         * or everything is read in order out of a single section
+         */
+        boolean pipelined = !stopAtLF && tocLengths.length != 1;
+        List<CompletableFuture<PassGroup>> passGroupFutures = pipelined ? queuePassGroups(lfGroupFutures) : null;
+        populateLFGroups(lfGroupFutures);
+
+        if (stopAtLF && !passCallback.apply(-1)) {
+            stoppedEarly = true;
+            stopReadingSections();
+            return;
+        }
+        if (!pipelined)
+            passGroupFutures = queuePassGroups(lfGroupFutures);
 
-        decodePassGroups();
+        decodePassGroups(passGroupFutures);
+        if (stoppedEarly) {
+            stopReadingSections();
+            return;
+        }
+        /* sections left unread by a region of interest still have to be read past */
+        FunctionalHelper.join(bitreaders.get(bitreaders.size() - 1));
 
-        lfGlobal.globalModular.applyTransforms();
+        lfGlobal.globalModular.applyTransforms(executor);
         int[][][] modularBuffer = lfGlobal.globalModular.getDecodedBuffer();
 
         for (int c = 0; c < modularBuffer.length; c++) {
@@ -455,19 +797,31 @@ public class Frame {
         }
 
         invertSubsampling();
+        flattenBuffers();
         if (header.restorationFilter.gab)
             performGabConvolution();
         if (header.restorationFilter.epfIterations > 0)
             performEdgePreservingFilter();
     }
 
+    /**
+     * The groups write into jagged buffers, everything after them works on flat ones.
+     */
+    private void flattenBuffers() {
+        for (int c = 0; c < buffer.length; c++)
+            buffer[c] = buffer[c].toFlat();
+    }
+
     // do this in RGB
     public void drawVarblocks() {
-        float[][][] buff = Stream.of(buffer[0], buffer[1], buffer[2]).map(b -> {
+        float[][] buff = Stream.of(buffer[0], buffer[1], buffer[2]).map(b -> {
             b.castToFloatWithMax(globalMetadata.getBitDepthHeader().getMaxValue());
-            return b.getFloatBuffer();
-        }).toArray(float[][][]::new);
+            return b.getFlatFloatBuffer();
+        }).toArray(float[][]::new);
+        int[] rows = new int[3];
         for (LFGroup lfg : lfGroups) {
+            if (lfg == null)
+                continue;
             Point pixelPos = getLFGroupLocation(lfg.lfGroupID);
             pixelPos.y <<= 11;
             pixelPos.x <<= 11;
@@ -481,20 +835,22 @@ public class Frame {
                 int cornerY = (block.y << 3) + pixelPos.y;
                 int cornerX = (block.x << 3) + pixelPos.x;
                 for (int y = 0; y < tt.pixelHeight; y++) {
+                    for (int c = 0; c < 3; c++)
+                        rows[c] = buffer[c].getRowOffset(y + cornerY) + cornerX;
                     for (int x = 0; x < tt.pixelWidth; x++) {
-                        float sampleR = buff[0][y + cornerY][x + cornerX];
-                        float sampleG = buff[1][y + cornerY][x + cornerX];
-                        float sampleB = buff[2][y + cornerY][x + cornerX];
+                        float sampleR = buff[0][rows[0] + x];
+                        float sampleG = buff[1][rows[1] + x];
+                        float sampleB = buff[2][rows[2] + x];
                         if (x == 0 || y == 0) {
-                            buff[1][y + cornerY][x + cornerX] = 0f;
-                            buff[0][y + cornerY][x + cornerX] = 0f;
-                            buff[2][y + cornerY][x + cornerX] = 0f;
+                            buff[1][rows[1] + x] = 0f;
+                            buff[0][rows[0] + x] = 0f;
+                            buff[2][rows[2] + x] = 0f;
                         } else {
                             float light = 0.25f * (sampleR + sampleB) + 0.5f * sampleG;
                             light = (float)Math.cbrt(light) * 0.5f + 0.25f;
-                            buff[0][y + cornerY][x + cornerX] = rFactor * 0.5f + 0.5f * sampleR / light;
-                            buff[1][y + cornerY][x + cornerX] = gFactor * 0.5f + 0.5f * sampleG / light;
-                            buff[2][y + cornerY][x + cornerX] = bFactor * 0.5f + 0.5f * sampleB / light;
+                            buff[0][rows[0] + x] = rFactor * 0.5f + 0.5f * sampleR / light;
+                            buff[1][rows[1] + x] = gFactor * 0.5f + 0.5f * sampleG / light;
+                            buff[2][rows[2] + x] = bFactor * 0.5f + 0.5f * sampleB / light;
                         }
                     }
                 }
@@ -515,26 +871,30 @@ public class Frame {
             normGabAdj[c] = gabW1 * mult;
             normGabDiag[c] = gabW2 * mult;
         }
+        /* leave room for the edge-preserving filter so it doesn't have to copy */
+        int outputBorder = header.restorationFilter.epfIterations > 0 ? EPF_BORDER : 0;
         for (int c = 0; c < colors; c++) {
             buffer[c].castToFloat(globalMetadata.getBitDepthHeader().bitsPerSample);
-            int height = buffer[c].height;
-            int width = buffer[c].width;
-            float[][] buffC = buffer[c].getFloatBuffer();
-            ImageBuffer newBuffer = new ImageBuffer(ImageBuffer.TYPE_FLOAT, height, width);
-            float[][] newBufferF = newBuffer.getFloatBuffer();
-            for (int y = 0; y < height; y++) {
-                int north = (y == 0 ? 0 : y - 1);
-                int south = (y + 1 == height) ? height - 1 : y + 1;
-                float[] buffR = buffC[y];
-                float[] buffN = buffC[north];
-                float[] buffS = buffC[south];
-                float[] newBuffR = newBufferF[y];
-                for (int x = 0; x < width; x++) {
-                    int west = (x == 0 ? 0 : x - 1);
-                    int east = (x + 1 == width ? width - 1 : x + 1);
-                    float adj = buffR[west] + buffR[east] + buffN[x] + buffS[x];
-                    float diag = buffN[west] + buffN[east] + buffS[west] + buffS[east];
-                    newBuffR[x] = normGabBase[c] * buffR[x] + normGabAdj[c] * adj + normGabDiag[c] * diag;
+            ImageBuffer input = withMirroredBorder(buffer[c], 1);
+            int height = input.height;
+            int width = input.width;
+            int stride = input.getStride();
+            float[] buffC = input.getFlatFloatBuffer();
+            ImageBuffer newBuffer = new ImageBuffer(ImageBuffer.TYPE_FLOAT, height, width, outputBorder);
+            float[] newBufferF = newBuffer.getFlatFloatBuffer();
+            Rectangle filterRegion = getFilterRegion(height, width);
+            Point lower = filterRegion.computeLowerCorner();
+            for (int y = filterRegion.origin.y; y < lower.y; y++) {
+                int row = input.getRowOffset(y);
+                int newRow = newBuffer.getRowOffset(y);
+                for (int x = filterRegion.origin.x; x < lower.x; x++) {
+                    int pos = row + x;
+                    int north = pos - stride;
+                    int south = pos + stride;
+                    float adj = buffC[pos - 1] + buffC[pos + 1] + buffC[north] + buffC[south];
+                    float diag = buffC[north - 1] + buffC[north + 1] + buffC[south - 1] + buffC[south + 1];
+                    newBufferF[newRow + x] = normGabBase[c] * buffC[pos] + normGabAdj[c] * adj
+                        + normGabDiag[c] * diag;
                 }
             }
             buffer[c] = newBuffer;
@@ -560,6 +920,11 @@ public class Frame {
                     int lfX = x >> 8;
                     int bX = x - (lfX << 8);
                     LFGroup lfg = lfGroups[lfR + lfX];
+                    /* skipped, outside of the region of interest */
+                    if (lfg == null) {
+                        inverseSigma[y][x] = Float.NaN;
+                        continue;
+                    }
                     int hf = lfg.hfMetadata.hfMultiplier[bY][bX];
                     int sharpness = lfg.hfMetadata.hfStreamBuffer[3][bY][bX];
                     if (sharpness < 0 || sharpness > 7)
@@ -577,18 +942,32 @@ public class Frame {
         ImageBuffer[] outputBuffer = new ImageBuffer[colors];
         for (int c = 0; c < colors; c++) {
             buffer[c].castToFloat(globalMetadata.getBitDepthHeader().bitsPerSample);
-            outputBuffer[c] = new ImageBuffer(ImageBuffer.TYPE_FLOAT, paddedSize.height, paddedSize.width);
+            if (!buffer[c].isFlat() || buffer[c].getBorder() < EPF_BORDER)
+                buffer[c] = new ImageBuffer(buffer[c], EPF_BORDER);
+            outputBuffer[c] = new ImageBuffer(ImageBuffer.TYPE_FLOAT, buffer[c].height, buffer[c].width, EPF_BORDER);
         }
 
+        /* every buffer here has the same layout, so the neighbors are at fixed offsets */
+        final int stride = outputBuffer[0].getStride();
+        final int[] epfCrossOffsets = Stream.of(epfCross).mapToInt(p -> p.y * stride + p.x).toArray();
+        final float[] channelScale = header.restorationFilter.epfChannelScale;
+        final float borderSadMul = header.restorationFilter.epfBorderSadMul;
+
         for (int i = 0; i < 3; i++) {
             if (i == 0 && header.restorationFilter.epfIterations < 3)
                 continue;
             if (i == 2 && header.restorationFilter.epfIterations < 2)
                 break;
-            float[][][] inputBuffers = Stream.of(buffer).limit(colors)
-                .map(ImageBuffer::getFloatBuffer).toArray(float[][][]::new);
-            float[][][] outputBuffers = Stream.of(outputBuffer).limit(colors)
-                .map(ImageBuffer::getFloatBuffer).toArray(float[][][]::new);
+            for (int c = 0; c < colors; c++)
+                buffer[c].mirrorBorder();
+            float[][] inputBuffers = Stream.of(buffer).limit(colors)
+                .map(ImageBuffer::getFlatFloatBuffer).toArray(float[][]::new);
+            float[][] outputBuffers = Stream.of(outputBuffer).limit(colors)
+                .map(ImageBuffer::getFlatFloatBuffer).toArray(float[][]::new);
+            /* distances are always taken over three channels, repeating gray */
+            float[][] distBuffers = new float[3][];
+            for (int c = 0; c < 3; c++)
+                distBuffers[c] = inputBuffers[colors == 1 ? 0 : c];
             float sigmaScale;
             if (i == 0)
                 sigmaScale = stepMultiplier * header.restorationFilter.epfPass0SigmaScale;
@@ -596,10 +975,15 @@ public class Frame {
                 sigmaScale = stepMultiplier * header.restorationFilter.epfPass2SigmaScale;
             else
                 sigmaScale = stepMultiplier;
-            Point[] crossList = i == 0 ? epfDoubleCross : epfCross;
+            final int[] crossOffsets = Stream.of(i == 0 ? epfDoubleCross : epfCross)
+                .mapToInt(p -> p.y * stride + p.x).toArray();
             float[] sumChannels = new float[colors];
-            for (int y = 0; y < paddedSize.height; y++) {
-                for (int x = 0; x < paddedSize.width; x++) {
+            Rectangle filterRegion = getFilterRegion(paddedSize.height, paddedSize.width);
+            Point lower = filterRegion.computeLowerCorner();
+            for (int y = filterRegion.origin.y; y < lower.y; y++) {
+                int row = outputBuffer[0].getRowOffset(y);
+                for (int x = filterRegion.origin.x; x < lower.x; x++) {
+                    int pos = row + x;
                     float s;
                     if (header.encoding == FrameFlags.VARDCT)
                         s = inverseSigma[y >> 3][x >> 3];
@@ -607,23 +991,28 @@ public class Frame {
                         s = invModularSigma;
                     if (s != s || s > (1f/0.3f)) {
                         for (int c = 0; c < outputBuffers.length; c++)
-                            outputBuffers[c][y][x] = inputBuffers[c][y][x];
+                            outputBuffers[c][pos] = inputBuffers[c][pos];
                         continue;
                     }
+                    int modY = y & 0b111;
+                    int modX = x & 0b111;
+                    boolean blockBorder = modY == 0 || modY == 7 || modX == 0 || modX == 7;
                     float sumWeights = 0f;
                     Arrays.fill(sumChannels, 0.0f);
-                    for (Point cross : crossList) {
-                        float dist = i == 2 ? epfDistance2(inputBuffers, colors, y, x, cross, paddedSize)
-                            : epfDistance1(inputBuffers, colors, y, x, cross, paddedSize);
-                        float weight = epfWeight(sigmaScale, dist, s, y, x);
+                    for (int crossOffset : crossOffsets) {
+                        int dPos = pos + crossOffset;
+                        float dist = i == 2 ? epfDistance2(distBuffers, channelScale, pos, dPos)
+                            : epfDistance1(distBuffers, channelScale, pos, dPos, epfCrossOffsets);
+                        if (blockBorder)
+                            dist *= borderSadMul;
+                        float v = 1f - dist * sigmaScale * s;
+                        float weight = v < 0f ? 0f : v;
                         sumWeights += weight;
-                        int mY = MathHelper.mirrorCoordinate(y + cross.y, paddedSize.height);
-                        int mX = MathHelper.mirrorCoordinate(x + cross.x, paddedSize.width);
                         for (int c = 0; c < colors; c++)
-                            sumChannels[c] += inputBuffers[c][mY][mX] * weight;
+                            sumChannels[c] += inputBuffers[c][dPos] * weight;
                     }
                     for (int c = 0; c < outputBuffers.length; c++)
-                        outputBuffers[c][y][x] = sumChannels[c] / sumWeights;
+                        outputBuffers[c][pos] = sumChannels[c] / sumWeights;
                 }
             }
             for (int c = 0; c < colors; c++) {
@@ -635,49 +1024,25 @@ public class Frame {
         }
     }
 
-    private float epfDistance1(float[][][] buffer, int colors, int basePosY, int basePosX,
-            Point dCross, Dimension frameSize) {
+    private static float epfDistance1(float[][] buffer, float[] channelScale, int pos, int dPos,
+            int[] crossOffsets) {
         float dist = 0f;
         for (int c = 0; c < 3; c++) {
-            int i = colors == 1 ? 0 : c;
-            float[][] buffC = buffer[i];
-            float scale = header.restorationFilter.epfChannelScale[c];
-            for (Point cross : epfCross) {
-                int pY = MathHelper.mirrorCoordinate(basePosY + cross.y, frameSize.height);
-                int pX = MathHelper.mirrorCoordinate(basePosX + cross.x, frameSize.width);
-                int dY = MathHelper.mirrorCoordinate(basePosY + dCross.y + cross.y, frameSize.height);
-                int dX = MathHelper.mirrorCoordinate(basePosX + dCross.x + cross.x, frameSize.width);
-                dist += Math.abs(buffC[pY][pX] - buffC[dY][dX]) * scale;
-            }
+            float[] buffC = buffer[c];
+            float scale = channelScale[c];
+            for (int crossOffset : crossOffsets)
+                dist += Math.abs(buffC[pos + crossOffset] - buffC[dPos + crossOffset]) * scale;
         }
-
         return dist;
     }
 
-    private float epfDistance2(float[][][] buffer, int colors, int basePosY, int basePosX,
-            Point cross, Dimension frameSize) {
+    private static float epfDistance2(float[][] buffer, float[] channelScale, int pos, int dPos) {
         float dist = 0f;
-        for (int c = 0; c < 3; c++) {
-            int i = colors == 1 ? 0 : c;
-            float[][] buffC = buffer[i];
-            int dY = MathHelper.mirrorCoordinate(basePosY + cross.y, frameSize.height);
-            int dX = MathHelper.mirrorCoordinate(basePosX + cross.x, frameSize.width);
-            dist += Math.abs(buffC[basePosY][basePosX] - buffC[dY][dX])
-                * header.restorationFilter.epfChannelScale[c];
-        }
+        for (int c = 0; c < 3; c++)
+            dist += Math.abs(buffer[c][pos] - buffer[c][dPos]) * channelScale[c];
         return dist;
     }
 
-    private float epfWeight(float sigmaScale, float distance, float inverseSigma, int refY, int refX) {
-        int modY = refY & 0b111;
-        int modX = refX & 0b111;
-        if (modY == 0 || modY == 7 || modX == 0 || modX == 7)
-            distance *= header.restorationFilter.epfBorderSadMul;
-
-        float v = 1f - distance * sigmaScale * inverseSigma;
-        return v < 0f ? 0f : v;
-    }
-
     private void invertSubsampling() {
         for (int c = 0; c < 3; c++) {
             int xShift = header.jpegUpsamplingX[c];
@@ -791,16 +1156,19 @@ public class Frame {
         if (lfGlobal.noiseParameters == null)
             return;
         final float[] lut = lfGlobal.noiseParameters;
-        float[][][] buffers = new float[3][][];
+        float[][] buffers = new float[3][];
         for (int c = 0; c < 3; c++) {
             buffer[c].castToFloat(globalMetadata.getBitDepthHeader().bitsPerSample);
-            buffers[c] = buffer[c].getFloatBuffer();
+            buffers[c] = buffer[c].getFlatFloatBuffer();
         }
         for (int y = 0; y < bounds.size.height; y++) {
+            int row0 = buffer[0].getRowOffset(y);
+            int row1 = buffer[1].getRowOffset(y);
+            int row2 = buffer[2].getRowOffset(y);
             for (int x = 0; x < bounds.size.width; x++) {
-                float inScaledR = buffers[1][y][x] + buffers[0][y][x];
+                float inScaledR = buffers[1][row1 + x] + buffers[0][row0 + x];
                 inScaledR = inScaledR < 0f ? 0f : 3f * inScaledR;
-                float inScaledG = buffers[1][y][x] - buffers[0][y][x];
+                float inScaledG = buffers[1][row1 + x] - buffers[0][row0 + x];
                 inScaledG = inScaledG < 0f ? 0f : 3f * inScaledG;
                 int intInR;
                 float fracInR;
@@ -827,9 +1195,9 @@ public class Frame {
                 float nr = sr * (0.00171875f * noiseBuffer[0][y][x] + 0.21828125f * noiseBuffer[2][y][x]);
                 float ng = sg * (0.00171875f * noiseBuffer[1][y][x] + 0.21828125f * noiseBuffer[2][y][x]);
                 float nrg = nr + ng;
-                buffers[1][y][x] += nrg;
-                buffers[0][y][x] += lfGlobal.lfChanCorr.baseCorrelationX * nrg + nr - ng;
-                buffers[2][y][x] += lfGlobal.lfChanCorr.baseCorrelationB * nrg;
+                buffers[1][row1 + x] += nrg;
+                buffers[0][row0 + x] += lfGlobal.lfChanCorr.baseCorrelationX * nrg + nr - ng;
+                buffers[2][row2 + x] += lfGlobal.lfChanCorr.baseCorrelationB * nrg;
             }
         }
     }
@@ -847,8 +1215,12 @@ public class Frame {
     }
 
     public LFGroup getLFGroupForGroup(int groupID) {
+        return lfGroups[getLFGroupIDForGroup(groupID)];
+    }
+
+    private int getLFGroupIDForGroup(int groupID) {
         Point pos = getGroupLocation(groupID);
-        return lfGroups[(pos.y >> 3) * lfGroupRowStride + (pos.x >> 3)];
+        return (pos.y >> 3) * lfGroupRowStride + (pos.x >> 3);
     }
 
     public int getNumLFGroups() {
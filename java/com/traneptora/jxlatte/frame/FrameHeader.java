@@ -37,6 +37,8 @@ public class FrameHeader {
     public final int lfLevel;
     public final boolean haveCrop;
     public Rectangle bounds;
+    /* whether the frame covers the whole canvas */
+    public final boolean fullFrame;
     public final BlendingInfo blendingInfo;
     public final BlendingInfo[] ecBlendingInfo;
     public final int duration;
@@ -68,6 +70,7 @@ public class FrameHeader {
         this.lfLevel = header.lfLevel;
         this.haveCrop = header.haveCrop;
         this.bounds = new Rectangle(header.bounds);
+        this.fullFrame = header.fullFrame;
         this.blendingInfo =  header.blendingInfo;
         this.ecBlendingInfo = header.ecBlendingInfo;
         this.duration = header.duration;
@@ -154,7 +157,7 @@ public class FrameHeader {
         }
         boolean normalFrame = !allDefault && (type == FrameFlags.REGULAR_FRAME || type == FrameFlags.SKIP_PROGRESSIVE);
         Point lowerCorner = bounds.computeLowerCorner();
-        boolean fullFrame = bounds.origin.y <= 0 && bounds.origin.x <= 0
+        fullFrame = bounds.origin.y <= 0 && bounds.origin.x <= 0
             && lowerCorner.y >= imageSize.height
             && lowerCorner.x >= imageSize.width;
         // intentionally computed after fullFrame
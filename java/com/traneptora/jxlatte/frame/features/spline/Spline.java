@@ -180,9 +180,9 @@ public class Spline {
             for (int c = 0; c < 3; c++) {
                 ImageBuffer buffer = frame.getBuffer()[c];
                 buffer.castToFloat(frame.globalMetadata.getBitDepthHeader().bitsPerSample);
-                float[][] fb = buffer.getFloatBuffer();
+                float[] fb = buffer.getFlatFloatBuffer();
                 for (int y = yBegin; y <= yEnd; y++) {
-                    float[] fby = fb[y];
+                    int row = buffer.getRowOffset(y);
                     for (int x = xBegin; x <= xEnd; x++) {
                         float dY = y - arc.locationY;
                         float dX = x - arc.locationX;
@@ -191,7 +191,7 @@ public class Spline {
                         factor -= MathHelper.erf((0.5f * distance - MathHelper.SQRT_F) * inverseSigma);
                         float extra = 0.25f * values[c] * sigma * factor * factor;
                         synchronized (buffer) {
-                            fby[x] += extra;
+                            fb[row + x] += extra;
                         }
                     }
                 }
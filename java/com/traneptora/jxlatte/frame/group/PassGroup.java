@@ -167,7 +167,7 @@ public class PassGroup {
         }
     }
 
-    public void invertVarDCT(float[][][] frameBuffer, PassGroup prev) {
+    public void invertVarDCT(float[][][] frameBuffer, PassGroup prev, float[][][] scratchBlock) {
         FrameHeader header = frame.getFrameHeader();
         Point zero = new Point();
 
@@ -199,13 +199,12 @@ public class PassGroup {
             }
         }
 
-        hfCoefficients.bakeDequantizedCoeffs();
+        hfCoefficients.bakeDequantizedCoeffs(scratchBlock);
         Point groupLocation = frame.getGroupLocation(groupID);
         groupLocation.y <<= 8;
         groupLocation.x <<= 8;
 
         float[][][] coeffs = hfCoefficients.dequantHFCoeff;
-        float[][][] scratchBlock = new float[5][256][256];
         for (int i = 0; i < hfCoefficients.blocks.length; i++) {
             Point posInLFG = hfCoefficients.blocks[i];
             if (posInLFG == null)
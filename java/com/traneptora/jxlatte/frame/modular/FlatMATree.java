@@ -0,0 +1,129 @@
+package com.traneptora.jxlatte.frame.modular;
+
+import java.util.Arrays;
+
+/**
+ * An MA tree specialized to one channel, with the nodes packed into parallel arrays.
+ *
+ * Decision nodes on the channel or stream index are resolved away. The children of a decision
+ * node are stored next to each other, the left one at child[n] and the right one after it.
+ * Leaf nodes have a property of -1.
+ */
+public class FlatMATree {
+
+    public final int[] property;
+    public final int[] value;
+    public final int[] child;
+    public final int[] context;
+    public final int[] predictor;
+    public final int[] offset;
+    public final int[] multiplier;
+    /* the properties referenced by the tree, in increasing order */
+    public final int[] properties;
+    public final boolean usesWeightedPredictor;
+
+    public FlatMATree(MATree tree, int channelIndex, int streamIndex) {
+        tree = tree.compactify(channelIndex, streamIndex);
+        int nodes = tree.getSize();
+        property = new int[nodes];
+        value = new int[nodes];
+        child = new int[nodes];
+        context = new int[nodes];
+        predictor = new int[nodes];
+        offset = new int[nodes];
+        multiplier = new int[nodes];
+        int size = 1;
+        boolean[] used = new boolean[16];
+        boolean wp = false;
+        /* breadth-first, so siblings end up next to each other */
+        MATree[] queue = new MATree[nodes];
+        queue[0] = tree;
+        for (int n = 0; n < size; n++) {
+            MATree node = queue[n];
+            if (node.isLeafNode()) {
+                property[n] = -1;
+                context[n] = node.getContext();
+                predictor[n] = node.getPredictor();
+                offset[n] = node.getOffset();
+                multiplier[n] = node.getMultiplier();
+                wp |= predictor[n] == 6;
+            } else {
+                int k = node.getProperty();
+                property[n] = k;
+                value[n] = node.getValue();
+                child[n] = size;
+                queue[size++] = node.getLeftChild();
+                queue[size++] = node.getRightChild();
+                if (k >= used.length)
+                    used = Arrays.copyOf(used, k + 1);
+                used[k] = true;
+                wp |= k == 15;
+            }
+        }
+        int count = 0;
+        for (boolean u : used)
+            count += u ? 1 : 0;
+        properties = new int[count];
+        for (int k = 0, i = 0; k < used.length; k++) {
+            if (used[k])
+                properties[i++] = k;
+        }
+        usesWeightedPredictor = wp;
+    }
+
+    /**
+     * @return the predictor used by every leaf, or -1 if they don't all use the same one
+     */
+    public int getSinglePredictor() {
+        int single = -1;
+        for (int n = 0; n < property.length; n++) {
+            if (property[n] >= 0)
+                continue;
+            if (single >= 0 && predictor[n] != single)
+                return -1;
+            single = predictor[n];
+        }
+        return single;
+    }
+
+    /**
+     * @return the number of entries the array of property values passed to walk must have
+     */
+    public int getPropertyCount() {
+        return properties.length > 0 ? properties[properties.length - 1] + 1 : 0;
+    }
+
+    /**
+     * Resolves the decisions on the row at the top of the tree, which are the same for the whole row.
+     * @return the node to start walking from for row y, a leaf if the row uses a single context
+     */
+    public int getRowRoot(int y) {
+        int n = 0;
+        while (property[n] == 2)
+            n = y > value[n] ? child[n] : child[n] + 1;
+        return n;
+    }
+
+    public boolean isLeaf(int node) {
+        return property[node] < 0;
+    }
+
+    /**
+     * @param props the values of the properties referenced by the tree, indexed by property
+     * @return the leaf node these property values lead to
+     */
+    public int walk(int[] props) {
+        return walk(props, 0);
+    }
+
+    /**
+     * @param node the node to start walking from
+     */
+    public int walk(int[] props, int node) {
+        int n = node;
+        int k;
+        while ((k = property[n]) >= 0)
+            n = props[k] > value[n] ? child[n] : child[n] + 1;
+        return n;
+    }
+}
@@ -3,7 +3,6 @@ package com.traneptora.jxlatte.frame.modular;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.function.IntUnaryOperator;
 
 import com.traneptora.jxlatte.entropy.EntropyStream;
 import com.traneptora.jxlatte.io.Bitreader;
@@ -74,6 +73,7 @@ public class MATree {
         }
         if (!stream.validateFinalState())
             throw new InvalidBitstreamException("Illegal MA Tree Entropy Stream");
+        stream.releaseWindow();
 
         this.stream = new EntropyStream(loggers, reader, (nodes.size() + 1) / 2);
 
@@ -135,13 +135,6 @@ public class MATree {
         }
     }
 
-    public MATree walk(IntUnaryOperator property) {
-        if (isLeafNode())
-            return this;
-        MATree branch = property.applyAsInt(this.property) > value ? leftChildNode : rightChildNode;
-        return branch.walk(property);
-    }
-
     public int getSize() {
         if (isLeafNode())
             return 1;
@@ -173,6 +166,22 @@ public class MATree {
         return offset;
     }
 
+    public int getProperty() {
+        return property;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public MATree getLeftChild() {
+        return leftChildNode;
+    }
+
+    public MATree getRightChild() {
+        return rightChildNode;
+    }
+
     public EntropyStream getStream() {
         return stream;
     }
@@ -1,7 +1,11 @@
 package com.traneptora.jxlatte.frame.modular;
 
 import java.io.IOException;
-import java.util.function.IntUnaryOperator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.IntConsumer;
 
 import com.traneptora.jxlatte.entropy.EntropyStream;
 import com.traneptora.jxlatte.io.Bitreader;
@@ -9,10 +13,15 @@ import com.traneptora.jxlatte.io.Loggers;
 import com.traneptora.jxlatte.util.Dimension;
 import com.traneptora.jxlatte.util.MathHelper;
 import com.traneptora.jxlatte.util.Point;
+import com.traneptora.jxlatte.util.ScratchArena;
+import com.traneptora.jxlatte.util.functional.FunctionalHelper;
 
 public class ModularChannel {
 
     private static final int[] oneL24OverKP1 = new int[64];
+    /* the number of samples unsqueezed by each task, and the width of a block of columns */
+    private static final int SQUEEZE_BLOCK = 1 << 16;
+    private static final int SQUEEZE_COLUMNS = 256;
 
     static {
         for (int i = 0; i < oneL24OverKP1.length; i++) {
@@ -47,8 +56,9 @@ public class ModularChannel {
     }
 
     public int[][] buffer;
+    /* the weighted predictor's error planes, of which only the current and previous row are kept */
     protected int[][][] error;
-    protected int[][] pred;
+    protected int pred;
     private int[] subpred;
     private int[] weight;
     private boolean decoded;
@@ -121,23 +131,23 @@ public class ModularChannel {
     }
 
     private int errorWest(int x, int y, int e) {
-        return x > 0 ? error[e][y][x - 1]: 0;
+        return x > 0 ? error[e][y & 1][x - 1]: 0;
     }
 
     private int errorNorth(int x, int y, int e) {
-        return y > 0 ? error[e][y - 1][x]: 0;
+        return y > 0 ? error[e][~y & 1][x]: 0;
     }
 
     private int errorWestWest(int x, int y, int e) {
-        return x > 1 ? error[e][y][x - 2] : 0;
+        return x > 1 ? error[e][y & 1][x - 2] : 0;
     }
 
     private int errorNorthWest(int x, int y, int e) {
-        return x > 0 && y > 0 ? error[e][y - 1][x - 1] : errorNorth(x, y, e);
+        return x > 0 && y > 0 ? error[e][~y & 1][x - 1] : errorNorth(x, y, e);
     }
 
     private int errorNorthEast(int x, int y, int e) {
-        return x + 1 < size.width && y > 0 ? error[e][y - 1][x + 1] : errorNorth(x, y, e);
+        return x + 1 < size.width && y > 0 ? error[e][~y & 1][x + 1] : errorNorth(x, y, e);
     }
 
     protected int prediction(int y, int x, int k) {
@@ -162,7 +172,7 @@ public class ModularChannel {
                 v = w + n - northWest(x, y);
                 return MathHelper.clamp(v, n, w);
             case 6:
-                return (pred[y][x] + 3) >> 3;
+                return (pred + 3) >> 3;
             case 7:
                 return northEast(x, y);
             case 8:
@@ -182,16 +192,68 @@ public class ModularChannel {
         }
     }
 
-    private int prePredictWP(WPParams wpParams, int x, int y) {
-        int n3 = north(x, y) << 3;
-        int nw3 = northWest(x, y) << 3;
-        int ne3 = northEast(x, y) << 3;
-        int w3 = west(x, y) << 3;
-        int nn3 = northNorth(x, y) << 3;
-        int tN = errorNorth(x, y, 4);
-        int tW = errorWest(x, y, 4);
-        int tNE = errorNorthEast(x, y, 4);
-        int tNW = errorNorthWest(x, y, 4);
+    /**
+     * The same as prediction, given the neighbors of the sample.
+     */
+    private int prediction(int k, int w, int n, int nw, int ne, int nn, int ww, int nee) {
+        switch (k) {
+            case 0:
+                return 0;
+            case 1:
+                return w;
+            case 2:
+                return n;
+            case 3:
+                return (w + n) / 2;
+            case 4:
+                return Math.abs(n - nw) < Math.abs(w - nw) ? w : n;
+            case 5:
+                return MathHelper.clamp(w + n - nw, n, w);
+            case 6:
+                return (pred + 3) >> 3;
+            case 7:
+                return ne;
+            case 8:
+                return nw;
+            case 9:
+                return ww;
+            case 10:
+                return (w + nw) / 2;
+            case 11:
+                return (n + nw) / 2;
+            case 12:
+                return (n + ne) / 2;
+            case 13:
+                return (6*n - 2*nn + 7*w + ww + nee + 3*ne + 8) / 16;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private int prePredictWP(WPParams wpParams, int x, int y, int w, int n, int nw, int ne, int nn) {
+        int n3 = n << 3;
+        int nw3 = nw << 3;
+        int ne3 = ne << 3;
+        int w3 = w << 3;
+        int nn3 = nn << 3;
+        /* away from the edges, every neighbor exists and can be fetched directly */
+        boolean interior = y > 0 && x > 1 && x + 1 < size.width;
+        int cur = y & 1;
+        int prev = cur ^ 1;
+        int tN, tW, tNE, tNW;
+        if (interior) {
+            int[] tCur = error[4][cur];
+            int[] tPrev = error[4][prev];
+            tN = tPrev[x];
+            tW = tCur[x - 1];
+            tNE = tPrev[x + 1];
+            tNW = tPrev[x - 1];
+        } else {
+            tN = errorNorth(x, y, 4);
+            tW = errorWest(x, y, 4);
+            tNE = errorNorthEast(x, y, 4);
+            tNW = errorNorthWest(x, y, 4);
+        }
         subpred[0] = w3 + ne3 - n3;
         subpred[1] = n3 - (((tW + tN + tNE) * wpParams.param1) >> 5);
         subpred[2] = w3 - (((tW + tN + tNW) * wpParams.param2) >> 5);
@@ -202,10 +264,17 @@ public class ModularChannel {
             + (nw3 - w3) * wpParams.param3e) >> 5);
         int wSum = 0;
         for (int e = 0; e < 4; e++) {
-            long eSum = errorNorth(x, y, e) + errorWest(x, y, e) + errorNorthWest(x, y, e)
-                + errorWestWest(x, y, e) + errorNorthEast(x, y, e);
-            if (x + 1 == size.width)
-                eSum += errorWest(x, y, e);
+            long eSum;
+            if (interior) {
+                int[] eCur = error[e][cur];
+                int[] ePrev = error[e][prev];
+                eSum = ePrev[x] + eCur[x - 1] + ePrev[x - 1] + eCur[x - 2] + ePrev[x + 1];
+            } else {
+                eSum = errorNorth(x, y, e) + errorWest(x, y, e) + errorNorthWest(x, y, e)
+                    + errorWestWest(x, y, e) + errorNorthEast(x, y, e);
+                if (x + 1 == size.width)
+                    eSum += errorWest(x, y, e);
+            }
             eSum &= 0xffffffffL;
             int shift = MathHelper.floorLog1p(eSum) - 5;
             if (shift < 0)
@@ -222,9 +291,9 @@ public class ModularChannel {
         long s = (wSum >>> 1) - 1L;
         for (int e = 0; e < 4; e++)
             s += subpred[e] * weight[e];
-        pred[y][x] = (int)((s * oneL24OverKP1[wSum - 1]) >> 24);
+        pred = (int)((s * oneL24OverKP1[wSum - 1]) >> 24);
         if (((tN ^ tW) | (tN ^ tNW)) <= 0)
-            pred[y][x] = MathHelper.clamp(pred[y][x], w3, n3, ne3);
+            pred = MathHelper.clamp(pred, w3, n3, ne3);
         int maxError = tW;
         if (Math.abs(tN) > Math.abs(maxError))
             maxError = tN;
@@ -235,8 +304,11 @@ public class ModularChannel {
         return maxError;
     }
 
-    private int propertyExpand(ModularStream parent, int channelIndex, int streamIndex,
-            WPParams wpParams, int k, int maxError, int y, int x) {
+    /**
+     * @param gradW the gradient prediction of the west sample, or 0 if there is none
+     */
+    private int propertyExpand(ModularStream parent, int channelIndex, int streamIndex, int k, int maxError,
+            int y, int x, int w, int n, int nw, int ne, int nn, int ww, int gradW) {
         switch (k) {
             case 0:
                 return channelIndex;
@@ -247,29 +319,27 @@ public class ModularChannel {
             case 3:
                 return x;
             case 4:
-                return Math.abs(north(x, y));
+                return Math.abs(n);
             case 5:
-                return Math.abs(west(x, y));
+                return Math.abs(w);
             case 6:
-                return north(x, y);
+                return n;
             case 7:
-                return west(x, y);
+                return w;
             case 8:
-                return x > 0
-                    ? west(x, y) - (west(x - 1, y) + north(x - 1, y) - northWest(x - 1, y))
-                    : west(x, y);
+                return w - gradW;
             case 9:
-                return west(x, y) + north(x, y) - northWest(x, y);
+                return w + n - nw;
             case 10:
-                return west(x, y) - northWest(x, y);
+                return w - nw;
             case 11:
-                return northWest(x, y) - north(x, y);
+                return nw - n;
             case 12:
-                return north(x, y) - northEast(x, y);
+                return n - ne;
             case 13:
-                return north(x, y) - northNorth(x, y);
+                return n - nn;
             case 14:
-                return west(x, y) - westWest(x, y);
+                return w - ww;
             case 15:
                 return maxError;
             default:
@@ -302,14 +372,75 @@ public class ModularChannel {
         }
     }
 
-    private IntUnaryOperator getWalkFunction(ModularStream parent, int channelIndex,
-            int streamIndex, WPParams wpParams, int y, int x) {
-        int maxError;
-        if (wpParams != null)
-            maxError = prePredictWP(wpParams, x, y);
-        else
-            maxError = 0;
-        return k -> propertyExpand(parent, channelIndex, streamIndex, wpParams, k, maxError, y, x);
+    /**
+     * @return the residual of the sample, multiplied and offset as the leaf says
+     */
+    private int readResidual(Bitreader reader, EntropyStream stream, FlatMATree flatTree, int leaf,
+            int distMultiplier, Loggers loggers, int y, int x, int channelIndex, int streamIndex)
+            throws IOException {
+        int diff;
+        try {
+            diff = stream.readSymbol(reader, flatTree.context[leaf], distMultiplier);
+        } catch (IOException ioe) {
+            loggers.log(Loggers.LOG_VERBOSE, "Error at y=%d, x=%d, h=%d, w=%d, c=%d, s=%d%n", y, x,
+                size.height, size.width, channelIndex, streamIndex);
+            throw ioe;
+        }
+        return MathHelper.unpackSigned(diff) * flatTree.multiplier[leaf] + flatTree.offset[leaf];
+    }
+
+    /**
+     * Decodes the samples from start to end of row y, which must have all their neighbors,
+     * for a tree that only uses the gradient predictor and not the weighted predictor.
+     */
+    private void decodeGradientRow(Bitreader reader, EntropyStream stream, FlatMATree flatTree, int[] props,
+            ModularStream parent, int channelIndex, int streamIndex, int distMultiplier, Loggers loggers,
+            int y, int rowRoot, int start, int end) throws IOException {
+        int[] properties = flatTree.properties;
+        int[] row = buffer[y];
+        int[] rowN = buffer[y - 1];
+        int[] rowNN = buffer[y - 2];
+        for (int x = start; x < end; x++) {
+            int w = row[x - 1];
+            int n = rowN[x];
+            int nw = rowN[x - 1];
+            for (int k : properties)
+                props[k] = propertyExpand(parent, channelIndex, streamIndex, k, 0, y, x, w, n, nw,
+                    rowN[x + 1], rowNN[x], row[x - 2], row[x - 2] + nw - rowN[x - 2]);
+            int leaf = flatTree.walk(props, rowRoot);
+            int diff = readResidual(reader, stream, flatTree, leaf, distMultiplier, loggers,
+                y, x, channelIndex, streamIndex);
+            row[x] = diff + MathHelper.clamp(w + n - nw, n, w);
+        }
+    }
+
+    /**
+     * Decodes row y, all of which uses the given leaf, and not the weighted predictor.
+     * The residuals are read straight into the row in one go, then predicted in place.
+     */
+    private void decodeFixedRow(Bitreader reader, EntropyStream stream, FlatMATree flatTree, int leaf,
+            int distMultiplier, Loggers loggers, int y, int channelIndex, int streamIndex)
+            throws IOException {
+        int[] row = buffer[y];
+        int width = size.width;
+        try {
+            stream.readSymbols(reader, flatTree.context[leaf], distMultiplier, row, 0, width);
+        } catch (IOException ioe) {
+            loggers.log(Loggers.LOG_VERBOSE, "Error at y=%d, h=%d, w=%d, c=%d, s=%d%n", y,
+                size.height, size.width, channelIndex, streamIndex);
+            throw ioe;
+        }
+        int multiplier = flatTree.multiplier[leaf];
+        int offset = flatTree.offset[leaf];
+        int predictor = flatTree.predictor[leaf];
+        if (predictor == 0) {
+            for (int x = 0; x < width; x++)
+                row[x] = MathHelper.unpackSigned(row[x]) * multiplier + offset;
+            return;
+        }
+        /* only the samples before x are read, which are done by then */
+        for (int x = 0; x < width; x++)
+            row[x] = MathHelper.unpackSigned(row[x]) * multiplier + offset + prediction(y, x, predictor);
     }
 
     public boolean decode(Bitreader reader, EntropyStream stream, WPParams wpParams, MATree tree,
@@ -319,38 +450,81 @@ public class ModularChannel {
             throw new IllegalStateException("Channel decoded twice");
         decoded = true;
         allocate();
-        boolean useWP = forceWP || tree.usesWeightedPredictor();
+        FlatMATree flatTree = new FlatMATree(tree, channelIndex, streamIndex);
+        boolean useWP = forceWP || flatTree.usesWeightedPredictor;
         if (useWP) {
-            error = new int[5][size.height][size.width];
-            pred = new int[size.height][size.width];
+            /* only ever read where already written */
+            error = ScratchArena.get().takePlanes(5, 2, size.width);
             subpred = new int[4];
             weight = new int[4];
         }
         if (!useWP)
             wpParams = null;
+        int[] properties = flatTree.properties;
+        int[] props = new int[flatTree.getPropertyCount()];
+        int width = size.width;
+        /* gradient-only trees get a loop of their own for the interior of each row */
+        boolean gradientOnly = !useWP && flatTree.getSinglePredictor() == 5;
         for (int y = 0; y < size.height; y++) {
-            MATree refinedTree = tree.compactify(channelIndex, streamIndex, y);
-            for (int x = 0; x < size.width; x++) {
-                MATree leafNode = refinedTree.walk(getWalkFunction(parent, channelIndex, streamIndex, wpParams, y, x));
-                int diff;
-                try {
-                    int context = leafNode.getContext();
-                    diff = stream.readSymbol(reader, context, distMultiplier);
-                } catch (IOException ioe) {
-                    loggers.log(Loggers.LOG_VERBOSE, "Error at y=%d, x=%d, h=%d, w=%d, c=%d, s=%d%n", y, x,
-                        size.height, size.width, channelIndex, streamIndex);
-                    throw ioe;
+            int[] row = buffer[y];
+            int[] rowN = y > 0 ? buffer[y - 1] : null;
+            int[] rowNN = y > 1 ? buffer[y - 2] : null;
+            /* the samples whose neighbors all exist, which can be fetched without any checks */
+            int interiorStart = y > 1 ? 2 : width;
+            int interiorEnd = Math.max(interiorStart, width - 2);
+            int rowRoot = flatTree.getRowRoot(y);
+            if (!useWP && flatTree.isLeaf(rowRoot)) {
+                decodeFixedRow(reader, stream, flatTree, rowRoot, distMultiplier, loggers,
+                    y, channelIndex, streamIndex);
+                continue;
+            }
+            for (int x = 0; x < width; x++) {
+                if (gradientOnly && x == interiorStart && x < interiorEnd) {
+                    decodeGradientRow(reader, stream, flatTree, props, parent, channelIndex, streamIndex,
+                        distMultiplier, loggers, y, rowRoot, interiorStart, interiorEnd);
+                    x = interiorEnd - 1;
+                    continue;
+                }
+                int w, n, nw, ne, nn, ww, nee, gradW;
+                if (x >= interiorStart && x < interiorEnd) {
+                    w = row[x - 1];
+                    ww = row[x - 2];
+                    n = rowN[x];
+                    nw = rowN[x - 1];
+                    ne = rowN[x + 1];
+                    nee = rowN[x + 2];
+                    nn = rowNN[x];
+                    gradW = ww + nw - rowN[x - 2];
+                } else {
+                    w = west(x, y);
+                    n = north(x, y);
+                    nw = northWest(x, y);
+                    ne = northEast(x, y);
+                    nn = northNorth(x, y);
+                    ww = westWest(x, y);
+                    nee = northEastEast(x, y);
+                    gradW = x > 0 ? west(x - 1, y) + north(x - 1, y) - northWest(x - 1, y) : 0;
                 }
-                int diff2 = MathHelper.unpackSigned(diff) * leafNode.getMultiplier() + leafNode.getOffset();
-                int trueValue = diff2 + prediction(y, x, leafNode.getPredictor());
-                buffer[y][x] = trueValue;
+                int maxError = useWP ? prePredictWP(wpParams, x, y, w, n, nw, ne, nn) : 0;
+                for (int k : properties)
+                    props[k] = propertyExpand(parent, channelIndex, streamIndex, k, maxError,
+                        y, x, w, n, nw, ne, nn, ww, gradW);
+                int leaf = flatTree.walk(props, rowRoot);
+                int diff = readResidual(reader, stream, flatTree, leaf, distMultiplier, loggers,
+                    y, x, channelIndex, streamIndex);
+                int trueValue = diff + prediction(flatTree.predictor[leaf], w, n, nw, ne, nn, ww, nee);
+                row[x] = trueValue;
                 if (useWP) {
                     for (int e = 0; e < 4; e++)
-                        error[e][y][x] = (Math.abs(subpred[e] - (trueValue << 3)) + 3) >> 3;
-                    error[4][y][x] = pred[y][x] - (trueValue << 3);
+                        error[e][y & 1][x] = (Math.abs(subpred[e] - (trueValue << 3)) + 3) >> 3;
+                    error[4][y & 1][x] = pred - (trueValue << 3);
                 }
             }
         }
+        if (useWP) {
+            ScratchArena.get().givePlanes(error);
+            error = null;
+        }
         return true;
     }
 
@@ -358,56 +532,135 @@ public class ModularChannel {
         return decoded;
     }
 
+    /**
+     * Runs block on the start of each block of step out of count, in parallel on the executor
+     * if it's not null, in which case this must not be called from one of the executor's threads.
+     */
+    private static void forEachBlock(ExecutorService executor, int count, int step, IntConsumer block) {
+        if (executor == null || step >= count) {
+            for (int i = 0; i < count; i += step)
+                block.accept(i);
+            return;
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i += step) {
+            final int start = i;
+            futures.add(CompletableFuture.runAsync(() -> block.accept(start), executor));
+        }
+        FunctionalHelper.join(null, futures.iterator());
+    }
+
     public static ModularChannel inverseHorizontalSqueeze(ModularChannel channel,
             ModularChannel orig, ModularChannel res) {
+        return inverseHorizontalSqueeze(channel, orig, res, null);
+    }
+
+    /**
+     * @param executor if not null, blocks of rows are unsqueezed on it in parallel
+     */
+    public static ModularChannel inverseHorizontalSqueeze(ModularChannel channel,
+            ModularChannel orig, ModularChannel res, ExecutorService executor) {
         if (channel.size.width != orig.size.width + res.size.width
                 || (orig.size.width != res.size.width && orig.size.width != 1 + res.size.width)
                 || channel.size.height != orig.size.height || res.size.height != orig.size.height)
             throw new IllegalArgumentException("Corrupted squeeze transform");
-        channel.allocate();
-        for (int y = 0; y < channel.size.height; y++) {
-            for (int x = 0; x < res.size.width; x++) {
-                int avg = orig.buffer[y][x];
-                int residu = res.buffer[y][x];
-                int nextAvg = x + 1 < orig.size.width ? orig.buffer[y][x + 1] : avg;
-                int left = x > 0 ? channel.buffer[y][2*x - 1] : avg;
-                int diff = residu + tendency(left, avg, nextAvg);
-                int first = avg + diff / 2;
-                channel.buffer[y][2*x] = first;
-                channel.buffer[y][2*x + 1] = first - diff;
-            }
-        }
-        if (orig.size.width > res.size.width) {
-            final int xs = 2 * res.size.width;
-            for (int y = 0; y < channel.size.height; y++)
-                channel.buffer[y][xs] = orig.buffer[y][res.size.width];
+        int height = channel.size.height;
+        int width = channel.size.width;
+        if (height == 0 || width == 0) {
+            channel.allocate();
+            return channel;
         }
+        /* output rows are lent on this thread, the consumed input rows are given back at the end */
+        ScratchArena arena = ScratchArena.get();
+        channel.buffer = new int[height][];
+        for (int y = 0; y < height; y++)
+            channel.buffer[y] = arena.takeRow(width);
+        /* rows are independent of each other */
+        int step = executor != null ? Math.max(1, SQUEEZE_BLOCK / width) : height;
+        forEachBlock(executor, height, step, y0 -> {
+            int y1 = Math.min(y0 + step, height);
+            for (int y = y0; y < y1; y++) {
+                int[] out = channel.buffer[y];
+                int[] origRow = orig.buffer[y];
+                int[] resRow = res.buffer[y];
+                for (int x = 0; x < res.size.width; x++) {
+                    int avg = origRow[x];
+                    int residu = resRow[x];
+                    int nextAvg = x + 1 < orig.size.width ? origRow[x + 1] : avg;
+                    int left = x > 0 ? out[2*x - 1] : avg;
+                    int diff = residu + tendency(left, avg, nextAvg);
+                    int first = avg + diff / 2;
+                    out[2*x] = first;
+                    out[2*x + 1] = first - diff;
+                }
+                if (orig.size.width > res.size.width)
+                    out[2 * res.size.width] = origRow[res.size.width];
+            }
+        });
+        arena.giveRows(orig.buffer);
+        arena.giveRows(res.buffer);
+        orig.buffer = null;
+        res.buffer = null;
 
         return channel;
     }
 
     public static ModularChannel inverseVerticalSqueeze(ModularChannel channel,
             ModularChannel orig, ModularChannel res) {
+        return inverseVerticalSqueeze(channel, orig, res, null);
+    }
+
+    /**
+     * Unsqueezes in place, taking over the rows of orig and res, which must not be used afterwards.
+     * @param executor if not null, blocks of columns are unsqueezed on it in parallel
+     */
+    public static ModularChannel inverseVerticalSqueeze(ModularChannel channel,
+            ModularChannel orig, ModularChannel res, ExecutorService executor) {
         if (channel.size.height != orig.size.height + res.size.height
                 || (orig.size.height != res.size.height && orig.size.height != 1 + res.size.height)
                 || channel.size.width != orig.size.width || res.size.width != orig.size.width)
             throw new IllegalStateException("Corrupted squeeze transform");
-
-        channel.allocate();
-        for (int y = 0; y < res.size.height; y++) {
-            for (int x = 0; x < channel.size.width; x++) {
-                int avg = orig.buffer[y][x];
-                int residu = res.buffer[y][x];
-                int nextAvg = y + 1 < orig.size.height ? orig.buffer[y + 1][x] : avg;
-                int top = y > 0 ? channel.buffer[2*y - 1][x] : avg;
-                int diff = residu + tendency(top, avg, nextAvg);
-                int first = avg + diff / 2;
-                channel.buffer[2*y][x] = first;
-                channel.buffer[2*y + 1][x] = first - diff;
-            }
+        int width = channel.size.width;
+        int resHeight = res.size.height;
+        if (channel.size.height == 0 || width == 0) {
+            channel.allocate();
+            return channel;
         }
-        if (orig.size.height > res.size.height)
-            System.arraycopy(orig.buffer[res.size.height], 0, channel.buffer[2*res.size.height], 0, channel.size.width);
+        /*
+         * output rows 2y and 2y + 1 are written over residual row y and average row y,
+         * each sample of which is read right before it's written
+         */
+        int[][] out = new int[channel.size.height][];
+        for (int y = 0; y < resHeight; y++) {
+            out[2*y] = res.buffer[y];
+            out[2*y + 1] = orig.buffer[y];
+        }
+        if (orig.size.height > resHeight)
+            out[2 * resHeight] = orig.buffer[resHeight];
+        int[][] origBuffer = orig.buffer;
+        int origHeight = orig.size.height;
+        /* columns are independent of each other */
+        int step = executor != null ? SQUEEZE_COLUMNS : width;
+        forEachBlock(executor, width, step, x0 -> {
+            int x1 = Math.min(x0 + step, width);
+            for (int y = 0; y < resHeight; y++) {
+                int[] avgRow = out[2*y + 1];
+                int[] resRow = out[2*y];
+                int[] nextRow = y + 1 < origHeight ? origBuffer[y + 1] : avgRow;
+                int[] topRow = y > 0 ? out[2*y - 1] : avgRow;
+                for (int x = x0; x < x1; x++) {
+                    int avg = avgRow[x];
+                    int residu = resRow[x];
+                    int nextAvg = nextRow[x];
+                    int top = topRow[x];
+                    int diff = residu + tendency(top, avg, nextAvg);
+                    int first = avg + diff / 2;
+                    resRow[x] = first;
+                    avgRow[x] = first - diff;
+                }
+            }
+        });
+        channel.buffer = out;
 
         return channel;
     }
@@ -7,6 +7,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import com.traneptora.jxlatte.entropy.EntropyStream;
 import com.traneptora.jxlatte.frame.Frame;
@@ -204,10 +205,24 @@ public class ModularStream implements Iterable<ModularChannel> {
         }
         if (stream != null && !stream.validateFinalState())
             throw new InvalidBitstreamException("Illegal final modular state");
+        if (stream != null)
+            stream.releaseWindow();
         if (!partial)
             applyTransforms();
     }
 
+    /**
+     * @return true if undoing the transforms only ever mixes samples at the same position,
+     * which is not the case for squeeze or for palettes, as the latter can carry deltas
+     */
+    public boolean hasOnlyPointwiseTransforms() {
+        for (TransformInfo transform : transforms) {
+            if (transform.tr != TransformInfo.RCT)
+                return false;
+        }
+        return true;
+    }
+
     public int getEncodedChannelCount() {
         return channels.size();
     }
@@ -222,6 +237,14 @@ public class ModularStream implements Iterable<ModularChannel> {
     }
 
     public void applyTransforms() throws InvalidBitstreamException {
+        applyTransforms(null);
+    }
+
+    /**
+     * @param executor if not null, squeeze steps are undone on it in parallel,
+     * in which case this must not be called from one of the executor's threads
+     */
+    public void applyTransforms(ExecutorService executor) throws InvalidBitstreamException {
         if (transformed)
             return;
         transformed = true;
@@ -241,16 +264,15 @@ public class ModularStream implements Iterable<ModularChannel> {
                         if (sp.horizontal) {
                             ModularChannel outputInfo = new ModularChannel(chan.size.height,
                                 chan.size.width + residu.size.width, chan.vshift, chan.hshift - 1);
-                            output = ModularChannel.inverseHorizontalSqueeze(outputInfo, chan, residu);
+                            output = ModularChannel.inverseHorizontalSqueeze(outputInfo, chan, residu, executor);
                         } else {
                             ModularChannel outputInfo = new ModularChannel(chan.size.height + residu.size.height,
                                 chan.size.width, chan.vshift - 1, chan.hshift);
-                            output = ModularChannel.inverseVerticalSqueeze(outputInfo, chan, residu);
+                            output = ModularChannel.inverseVerticalSqueeze(outputInfo, chan, residu, executor);
                         }
                         channels.set(c, output);
                     }
-                    for (int c = 0; c < end - begin + 1; c++)
-                        channels.remove(offset);
+                    channels.subList(offset, offset + end - begin + 1).clear();
                 }
             } else if (transforms[i].tr == TransformInfo.RCT) {
                 int permutation = transforms[i].rctType / 7;
@@ -263,64 +285,9 @@ public class ModularStream implements Iterable<ModularChannel> {
                 int width = v[0].size.width;
                 if (!v[1].size.equals(v[0].size) || !v[2].size.equals(v[1].size))
                     throw new InvalidBitstreamException("RCT must be performed on three equal size channels");
-                switch(type) {
-                    case 0:
-                        break;
-                    case 1:
-                        for (int y = 0; y < height; y++) {
-                            for (int x = 0; x < width; x++) {
-                                v[2].buffer[y][x] += v[0].buffer[y][x];
-                            }
-                        }
-                        break;
-                    case 2:
-                        for (int y = 0; y < height; y++) {
-                            for (int x = 0; x < width; x++) {
-                                v[1].buffer[y][x] += v[0].buffer[y][x];
-                            }
-                        }
-                        break;
-                    case 3:
-                        for (int y = 0; y < height; y++) {
-                            for (int x = 0; x < width; x++) {
-                                final int a = v[0].buffer[y][x];
-                                v[2].buffer[y][x] += a;
-                                v[1].buffer[y][x] += a;
-                            }
-                        }
-                        break;
-                    case 4:
-                        for (int y = 0; y < height; y++) {
-                            for (int x = 0; x < width; x++) {
-                                v[1].buffer[y][x] += (v[0].buffer[y][x] + v[2].buffer[y][x]) >> 1;
-                            }
-                        }
-                        break;
-                    case 5:
-                        for (int y = 0; y < height; y++) {
-                            for (int x = 0; x < width; x++) {
-                                final int a = v[0].buffer[y][x];
-                                final int ac = a + v[2].buffer[y][x];
-                                v[1].buffer[y][x] += (a + ac) >> 1;
-                                v[2].buffer[y][x] = ac;
-                            }
-                        }
-                        break;
-                    case 6:
-                        for (int y = 0; y < height; y++) {
-                            for (int x = 0; x < width; x++) {
-                                final int b = v[1].buffer[y][x];
-                                final int c = v[2].buffer[y][x];
-                                final int tmp = v[0].buffer[y][x] - (c >> 1);
-                                final int f = tmp - (b >> 1);
-                                v[0].buffer[y][x] = f + b;
-                                v[1].buffer[y][x] = c + tmp;
-                                v[2].buffer[y][x] = f;
-                            }
-                        }
-                        break;
-                    default:
-                        throw new IllegalStateException("Challenge complete how did we get here");
+                if (type != 0) {
+                    for (int y = 0; y < height; y++)
+                        inverseRCTRow(type, v[0].buffer[y], v[1].buffer[y], v[2].buffer[y], width);
                 }
                 for (int j = 0; j < 3; j++)
                     channels.set(start + permutationLut[permutation][j], v[j]);
@@ -334,39 +301,29 @@ public class ModularStream implements Iterable<ModularChannel> {
                 for (int j = first + 1; j <= last; j++) {
                     channels.add(j, new ModularChannel(firstChannel));
                 }
+                int nbDeltas = transforms[i].nbDeltas;
+                int width = firstChannel.size.width;
+                int[] indices = new int[width];
                 for (int c = 0; c < transforms[i].numC; c++) {
                     ModularChannel chan = getChannel(first + c);
+                    int[] lut = getPaletteLookup(c0, c, transforms[i].nbColors, bitDepth);
+                    int[] deltaLut = getDeltaPaletteLookup(c, bitDepth);
                     for (int y = 0; y < firstChannel.size.height; y++) {
-                        for (int x = 0; x < firstChannel.size.width; x++) {
-                            int index = chan.buffer[y][x];
-                            boolean isDelta = index < transforms[i].nbDeltas;
-                            int value;
-                            if (index >= 0 && index < transforms[i].nbColors) {
-                                value = c0.buffer[c][index];
-                            } else if (index >= transforms[i].nbColors) {
-                                index -= transforms[i].nbColors;
-                                if (index < 64) {
-                                    value = ((index >> (2 * c)) % 4) * ((1 << bitDepth) - 1) / 4
-                                        + (1 << Math.max(0, bitDepth - 3));
-                                } else {
-                                    index -= 64;
-                                    for (int k = 0; k < c; k++)
-                                        index /= 5;
-                                    value = (index % 5) * ((1 << bitDepth) - 1) / 4;
-                                }
-                            } else if (c < 3) {
-                                index = (-index - 1) % 143;
-                                value = kDeltaPalette[(index + 1) >> 1][c];
-                                if ((index & 1) == 0)
-                                    value = -value;
-                                if (bitDepth > 8)
-                                    value <<= Math.min(bitDepth, 24) - 8;
-                            } else {
-                                value = 0;
+                        int[] row = chan.buffer[y];
+                        System.arraycopy(row, 0, indices, 0, width);
+                        boolean hasDeltas = false;
+                        for (int x = 0; x < width; x++) {
+                            int index = indices[x];
+                            hasDeltas |= index < nbDeltas;
+                            row[x] = index >= 0 && index < lut.length ? lut[index]
+                                : getPaletteValue(index, c, lut.length, deltaLut, bitDepth);
+                        }
+                        /* deltas are predicted from the samples before them, which are done by then */
+                        if (hasDeltas) {
+                            for (int x = 0; x < width; x++) {
+                                if (indices[x] < nbDeltas)
+                                    row[x] += chan.prediction(y, x, transforms[i].dPred);
                             }
-                            chan.buffer[y][x] = value;
-                            if (isDelta)
-                                chan.buffer[y][x] += chan.prediction(y, x, transforms[i].dPred);
                         }
                     }
                 }
@@ -379,6 +336,96 @@ public class ModularStream implements Iterable<ModularChannel> {
         }
     }
 
+    /**
+     * Undoes one row of an RCT of the given type, other than 0.
+     * Each type is a plain loop over the three rows, so the JIT can vectorize it.
+     */
+    private static void inverseRCTRow(int type, int[] a, int[] b, int[] c, int width) {
+        switch (type) {
+            case 1:
+                for (int x = 0; x < width; x++)
+                    c[x] += a[x];
+                break;
+            case 2:
+                for (int x = 0; x < width; x++)
+                    b[x] += a[x];
+                break;
+            case 3:
+                for (int x = 0; x < width; x++) {
+                    c[x] += a[x];
+                    b[x] += a[x];
+                }
+                break;
+            case 4:
+                for (int x = 0; x < width; x++)
+                    b[x] += (a[x] + c[x]) >> 1;
+                break;
+            case 5:
+                for (int x = 0; x < width; x++) {
+                    final int ac = a[x] + c[x];
+                    c[x] = ac;
+                    b[x] += (a[x] + ac) >> 1;
+                }
+                break;
+            case 6:
+                for (int x = 0; x < width; x++) {
+                    final int tmp = a[x] - (c[x] >> 1);
+                    final int f = tmp - (b[x] >> 1);
+                    a[x] = f + b[x];
+                    b[x] = c[x] + tmp;
+                    c[x] = f;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Challenge complete how did we get here");
+        }
+    }
+
+    /**
+     * @return the values of channel c for the palette indices from 0 up to the
+     * end of the first 64 implicit colors
+     */
+    private static int[] getPaletteLookup(ModularChannel c0, int c, int nbColors, int bitDepth) {
+        int[] lut = new int[nbColors + 64];
+        for (int index = 0; index < nbColors; index++)
+            lut[index] = c0.buffer[c][index];
+        for (int index = 0; index < 64; index++)
+            lut[nbColors + index] = ((index >> (2 * c)) % 4) * ((1 << bitDepth) - 1) / 4
+                + (1 << Math.max(0, bitDepth - 3));
+        return lut;
+    }
+
+    /**
+     * @return the delta palette of channel c scaled to the bit depth, or null if c has none
+     */
+    private static int[] getDeltaPaletteLookup(int c, int bitDepth) {
+        if (c >= 3)
+            return null;
+        int[] lut = new int[143];
+        for (int index = 0; index < lut.length; index++) {
+            int value = kDeltaPalette[(index + 1) >> 1][c];
+            if ((index & 1) == 0)
+                value = -value;
+            if (bitDepth > 8)
+                value <<= Math.min(bitDepth, 24) - 8;
+            lut[index] = value;
+        }
+        return lut;
+    }
+
+    /**
+     * @param lutLength where the implicit colors past the first 64 start
+     * @return the value of channel c for palette indices not covered by the lookup table
+     */
+    private static int getPaletteValue(int index, int c, int lutLength, int[] deltaLut, int bitDepth) {
+        if (index < 0)
+            return deltaLut != null ? deltaLut[(-index - 1) % 143] : 0;
+        index -= lutLength;
+        for (int k = 0; k < c; k++)
+            index /= 5;
+        return (index % 5) * ((1 << bitDepth) - 1) / 4;
+    }
+
     public EntropyStream getEntropyStream() {
         return stream;
     }
@@ -13,6 +13,7 @@ import com.traneptora.jxlatte.io.InvalidBitstreamException;
 import com.traneptora.jxlatte.util.Dimension;
 import com.traneptora.jxlatte.util.MathHelper;
 import com.traneptora.jxlatte.util.Point;
+import com.traneptora.jxlatte.util.ScratchArena;
 
 public class HFCoefficients {
 
@@ -58,7 +59,8 @@ public class HFCoefficients {
         int shift = header.passes.shift[pass];
         HFPass hfPass = frame.getHFPass(pass);
         Dimension size = frame.getGroupSize(groupID);
-        int[][][] nonZeroes = new int[3][32][32];
+        ScratchArena arena = ScratchArena.get();
+        int[][][] nonZeroes = arena.takeNonZeroes();
         stream = new EntropyStream(hfPass.contextStream);
         quantizedCoeffs = new int[3][][];
         dequantHFCoeff = new float[3][][];
@@ -134,13 +136,15 @@ public class HFCoefficients {
         }
         if (!stream.validateFinalState())
             throw new InvalidBitstreamException("Illegal final state in PassGroup: " + pass + ", " + group);
+        stream.releaseWindow();
+        arena.giveNonZeroes(nonZeroes);
 
     }
 
-    public void bakeDequantizedCoeffs() {
+    public void bakeDequantizedCoeffs(float[][][] scratchBlock) {
         dequantizeHFCoefficients();
         chromaFromLuma();
-        finalizeLLF();
+        finalizeLLF(scratchBlock);
     }
 
     private void chromaFromLuma() {
@@ -191,8 +195,7 @@ public class HFCoefficients {
         }
     }
 
-    private void finalizeLLF() {
-        float[][][] scratchBlock = new float[2][32][32];
+    private void finalizeLLF(float[][][] scratchBlock) {
         // put the LF coefficients into the HF coefficent array
         FrameHeader header = frame.getFrameHeader();
         for (int i = 0; i < blocks.length; i++) {
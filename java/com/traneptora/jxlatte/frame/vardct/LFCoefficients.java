@@ -48,9 +48,10 @@ public class LFCoefficients {
             this.dequantLFCoeff = dequantLFCoeff;
             for (int c = 0; c < 3; c++) {
                 lfBuffer[c].castToFloat(frame.globalMetadata.getBitDepthHeader().bitsPerSample);
-                float[][] b = lfBuffer[c].getFloatBuffer();
+                float[] b = lfBuffer[c].getFlatFloatBuffer();
                 for (int y = 0; y < dequantLFCoeff[c].length; y++) {
-                    System.arraycopy(b[pY + y], pX, dequantLFCoeff[c][y], 0, dequantLFCoeff[c][y].length);
+                    System.arraycopy(b, lfBuffer[c].getRowOffset(pY + y) + pX,
+                        dequantLFCoeff[c][y], 0, dequantLFCoeff[c][y].length);
                 }
             }
             return;
@@ -3,12 +3,30 @@ package com.traneptora.jxlatte.io;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import com.traneptora.jxlatte.util.MathHelper;
 
+/**
+ * Reads a bitstream either from an InputStream, or directly out of a byte array
+ * or ByteBuffer, in which case the cache is refilled eight bytes at a time.
+ */
 public class Bitreader extends InputStream {
 
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class,
+        ByteOrder.LITTLE_ENDIAN);
+
     private InputStream in;
+    /* array mode, null if not */
+    private byte[] array;
+    /* buffer mode, used for ByteBuffers without an accessible array, null if not */
+    private ByteBuffer data;
+    /* position and limit of array or data */
+    private int pos;
+    private int end;
     private long cache = 0;
     private int cacheBits = 0;
     private long bitsRead = 0;
@@ -17,6 +35,34 @@ public class Bitreader extends InputStream {
         this.in = in;
     }
 
+    public Bitreader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public Bitreader(byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.length)
+            throw new IndexOutOfBoundsException();
+        this.array = buffer;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Reads the remaining bytes of the buffer without copying them.
+     * The buffer's position is not modified.
+     */
+    public Bitreader(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            this.array = buffer.array();
+            this.pos = buffer.arrayOffset() + buffer.position();
+            this.end = buffer.arrayOffset() + buffer.limit();
+        } else {
+            this.data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            this.pos = 0;
+            this.end = data.limit();
+        }
+    }
+
     @Override
     public int read(byte[] buffer) throws IOException {
         return read(buffer, 0, buffer.length);
@@ -27,10 +73,16 @@ public class Bitreader extends InputStream {
     }
 
     public int readU32(int c0, int u0, int c1, int u1, int c2, int u2, int c3, int u3) throws IOException {
-        int choice = readBits(2);
-        int[] c = new int[]{c0, c1, c2, c3};
-        int[] u = new int[]{u0, u1, u2, u3};
-        return c[choice] + readBits(u[choice]);
+        switch (readBits(2)) {
+            case 0:
+                return c0 + readBits(u0);
+            case 1:
+                return c1 + readBits(u1);
+            case 2:
+                return c2 + readBits(u2);
+            default:
+                return c3 + readBits(u3);
+        }
     }
 
     public long readU64() throws IOException {
@@ -110,29 +162,54 @@ public class Bitreader extends InputStream {
             return 0;
         if (bits < 0 || bits > 32)
             throw new IllegalArgumentException("Must read between 0-32 bits, inclusive");
-        if (bits <= cacheBits) {
-            int ret = (int)(cache & ~(~0L << bits));
-            cacheBits -= bits;
-            cache >>>= bits;
-            bitsRead += bits;
-            return ret;
-        }
-        int count = in.available();
-        int max = (64 - cacheBits) / 8;
-        count = count > 0 ? (count < max ? count : max) : 1;
-        boolean eof = false;
-        for (int i = 0; i < count; i++) {
-            int b = in.read();
-            if (b < 0) {
-                eof = true;
-                break;
+        if (bits > cacheBits) {
+            if (in != null)
+                refillStream(bits);
+            else
+                refillBuffer();
+            if (bits > cacheBits)
+                throw new EOFException(String.format("unable to read enough bits: %d + %d", getBitsCount(), bits));
+        }
+        int ret = (int)(cache & ~(~0L << bits));
+        cacheBits -= bits;
+        cache >>>= bits;
+        bitsRead += bits;
+        return ret;
+    }
+
+    private void refillStream(int bits) throws IOException {
+        while (cacheBits < bits) {
+            int count = in.available();
+            int max = (64 - cacheBits) / 8;
+            count = count > 0 ? (count < max ? count : max) : 1;
+            for (int i = 0; i < count; i++) {
+                int b = in.read();
+                if (b < 0)
+                    return;
+                cache |= (b & 0xFFL) << cacheBits;
+                cacheBits += 8;
             }
+        }
+    }
+
+    /**
+     * Tops up the cache to at least 56 bits, or to the end of the buffer.
+     */
+    private void refillBuffer() {
+        int bytes = (63 - cacheBits) >> 3;
+        if (end - pos >= 8) {
+            long word = array != null ? (long)LONG_LE.get(array, pos) : data.getLong(pos);
+            cache |= word << cacheBits;
+            cacheBits += bytes << 3;
+            cache &= ~(~0L << cacheBits);
+            pos += bytes;
+            return;
+        }
+        for (; bytes > 0 && pos < end; bytes--) {
+            long b = array != null ? array[pos++] : data.get(pos++);
             cache |= (b & 0xFFL) << cacheBits;
             cacheBits += 8;
         }
-        if (eof && bits > cacheBits)
-            throw new EOFException(String.format("unable to read enough bits: %d + %d", getBitsCount(), bits));
-        return readBits(bits);
     }
 
     /**
@@ -156,6 +233,53 @@ public class Bitreader extends InputStream {
         return n;
     }
 
+    /**
+     * Like showBits, except that any bits past the end of the stream read as zero.
+     * Cheaper, as nothing is put back.
+     * @param bits Peeks at 0-32 bits of the bitstream
+     */
+    public int peekBits(int bits) throws IOException {
+        if (bits > cacheBits) {
+            if (in != null)
+                refillStream(bits);
+            else
+                refillBuffer();
+        }
+        return (int)(cache & ~(~0L << bits));
+    }
+
+    /**
+     * @return true if this reads from an InputStream, rather than from a buffer that's all there
+     */
+    public boolean isStreaming() {
+        return in != null;
+    }
+
+    /**
+     * Splits the next length bytes off into their own Bitreader, and skips past them.
+     * Readers over a byte array or ByteBuffer return a view without copying.
+     */
+    public Bitreader readSlice(int length) throws IOException {
+        if (cacheBits % 8 != 0)
+            throw new IllegalStateException("You must align before readSlice");
+        if (in != null) {
+            byte[] buffer = new byte[length];
+            if (IOHelper.readFully(this, buffer) != 0)
+                throw new EOFException("Unable to read full slice");
+            return new Bitreader(buffer);
+        }
+        int start = pos - cacheBits / 8;
+        if (length < 0 || length > end - start)
+            throw new EOFException("Unable to read full slice");
+        Bitreader slice = array != null ? new Bitreader(array, start, length)
+            : new Bitreader(IOHelper.slice(data, start, length));
+        cache = 0;
+        cacheBits = 0;
+        pos = start + length;
+        bitsRead += 8L * length;
+        return slice;
+    }
+
     public void zeroPadToByte() throws IOException {
         int remaining = cacheBits % 8;
         if (remaining > 0) {
@@ -167,7 +291,8 @@ public class Bitreader extends InputStream {
 
     @Override
     public void close() throws IOException {
-        in.close();
+        if (in != null)
+            in.close();
     }
 
     @Override
@@ -194,7 +319,14 @@ public class Bitreader extends InputStream {
         skipBits(cacheBits);
         bits -= cacheSave;
         long dangler = bits % 8L;
-        long skipped = bits - dangler - 8L * IOHelper.skipFully(in, (bits - dangler) / 8L);
+        long skipped;
+        if (in != null) {
+            skipped = bits - dangler - 8L * IOHelper.skipFully(in, (bits - dangler) / 8L);
+        } else {
+            long bytes = Math.min((bits - dangler) / 8L, end - pos);
+            pos += (int)bytes;
+            skipped = bytes * 8L;
+        }
         bitsRead += skipped;
         skipped += cacheSave;
         readBits((int)dangler);
@@ -237,7 +369,18 @@ public class Bitreader extends InputStream {
                 return i;
             buffer[offset + i] = (byte)readBits(8);
         }
-        int remaining = IOHelper.readFully(in, buffer, offset + cacheBytes, length);
+        int remaining;
+        if (in != null) {
+            remaining = IOHelper.readFully(in, buffer, offset + cacheBytes, length);
+        } else {
+            int count = Math.min(length, end - pos);
+            if (array != null)
+                System.arraycopy(array, pos, buffer, offset + cacheBytes, count);
+            else
+                data.duplicate().position(pos).get(buffer, offset + cacheBytes, count);
+            pos += count;
+            remaining = length - count;
+        }
         bitsRead += (length - remaining) * 8L;
         int ret = cacheBytes + length - remaining;
         if (ret == 0)
@@ -3,6 +3,8 @@ package com.traneptora.jxlatte.io;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 import com.traneptora.jxlatte.util.functional.ExceptionalSupplier;
@@ -34,16 +36,28 @@ public class Demuxer implements ExceptionalSupplier<byte[]>, Closeable {
     private long posInBox = 0;
     private long boxSize;
     private boolean container;
+    /* the whole file, if we're demuxing out of memory */
+    private ByteBuffer buffer;
 
     public Demuxer(InputStream in) {
         this.in = new PushbackInputStream(in);
     }
 
+    /**
+     * Demuxes a whole file in memory, see getCodestreamBuffer.
+     */
+    public Demuxer(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
     public int getLevel() {
         return level;
     }
 
     public void reset() {
+        /* an in-memory file is only demuxed once */
+        if (buffer != null)
+            return;
         level = 5;
         foundSignature = false;
         posInBox = 0;
@@ -152,8 +166,63 @@ public class Demuxer implements ExceptionalSupplier<byte[]>, Closeable {
         return containerDemux();
     }
 
+    /**
+     * Finds the codestream in an in-memory file without copying it.
+     * @return a view of the codestream, or null if it's split across several boxes
+     */
+    public ByteBuffer getCodestreamBuffer() throws IOException {
+        ByteBuffer b = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        byte[] signature = new byte[CONTAINER_SIGNATURE.length];
+        if (b.remaining() < signature.length) {
+            container = false;
+            return buffer.duplicate();
+        }
+        b.get(signature);
+        if (!Arrays.equals(signature, CONTAINER_SIGNATURE)) {
+            container = false;
+            return buffer.duplicate();
+        }
+        container = true;
+        ByteBuffer codestream = null;
+        while (b.remaining() > 0) {
+            if (b.remaining() < 8)
+                throw new InvalidBitstreamException("Truncated box header");
+            long size = b.getInt() & 0xFFFF_FFFFL;
+            int tag = b.getInt();
+            long payload;
+            if (size == 1) {
+                if (b.remaining() < 8)
+                    throw new InvalidBitstreamException("Truncated extended size");
+                payload = b.getLong() - 16;
+            } else {
+                payload = size == 0 ? b.remaining() : size - 8;
+            }
+            if (payload < 0 || payload > b.remaining())
+                throw new InvalidBitstreamException("Illegal box size");
+            if (tag == JXLL) {
+                if (payload != 1)
+                    throw new InvalidBitstreamException("jxll box must be size == 1");
+                int l = b.get(b.position()) & 0xFF;
+                if (l != 5 && l != 10)
+                    throw new InvalidBitstreamException(String.format("Invalid level: %d", l));
+                level = l;
+            } else if (tag == JXLP) {
+                return null;
+            } else if (tag == JXLC) {
+                if (codestream != null)
+                    throw new InvalidBitstreamException("Multiple jxlc boxes");
+                codestream = IOHelper.slice(b, b.position(), (int)payload);
+            }
+            b.position(b.position() + (int)payload);
+        }
+        if (codestream == null)
+            throw new InvalidBitstreamException("No codestream box found");
+        return codestream;
+    }
+
     @Override
     public void close() throws IOException {
-        in.close();
+        if (in != null)
+            in.close();
     }
 }
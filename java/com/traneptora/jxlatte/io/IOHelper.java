@@ -2,9 +2,41 @@ package com.traneptora.jxlatte.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 public final class IOHelper {
 
+    /**
+     * Maps the whole file read-only. The mapping outlives the channel.
+     * Pipes and devices such as /dev/stdin report a size of zero, so only regular files are mapped.
+     * @return the mapped file, or null if it isn't a non-empty regular file or is too large to map as one buffer
+     */
+    public static ByteBuffer mapFile(Path path) throws IOException {
+        if (!Files.isRegularFile(path))
+            return null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0 || size > Integer.MAX_VALUE)
+                return null;
+            return channel.map(MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * @return a view of length bytes of the buffer starting at offset, independent of its position
+     */
+    public static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.limit(offset + length);
+        dup.position(offset);
+        return dup.slice();
+    }
+
     /**
      * @return How much wasn't read due to EOF
      */
@@ -37,13 +37,16 @@ public class PFMWriter {
                 nb[c] = buffer[c];
             }
         }
-        float[][][] b = Stream.of(nb).map(a -> a.getFloatBuffer()).toArray(float[][][]::new);
+        float[][] b = Stream.of(nb).map(a -> a.getFlatFloatBuffer()).toArray(float[][]::new);
         int cCount = gray ? 1 : 3;
+        int[] rows = new int[cCount];
         // pfm is in backwards scanline order, bottom to top
         for (int y = height - 1; y >= 0; y--) {
-             for (int x = 0; x < width; x++) {
+            for (int c = 0; c < cCount; c++)
+                rows[c] = nb[c].getRowOffset(y);
+            for (int x = 0; x < width; x++) {
                 for (int c = 0; c < cCount; c++)
-                    dout.writeFloat(b[c][y][x]);
+                    dout.writeFloat(b[c][rows[c] + x]);
             }
         }
     }
@@ -0,0 +1,93 @@
+package com.traneptora.jxlatte.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Splits everything written to it into PNG chunks of one type, each at most
+ * chunkSize bytes long, so the whole payload never has to be held in memory.
+ * Closing this stream writes the last chunk but does not close the underlying stream.
+ */
+public class PNGChunkOutputStream extends OutputStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+    private OutputStream out;
+    private int chunkType;
+    private byte[] chunk;
+    private int chunkPos = 0;
+    private boolean wroteChunk = false;
+    private CRC32 crc32 = new CRC32();
+    private boolean closed = false;
+
+    public PNGChunkOutputStream(OutputStream out, int chunkType) {
+        this(out, chunkType, DEFAULT_CHUNK_SIZE);
+    }
+
+    public PNGChunkOutputStream(OutputStream out, int chunkType, int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        this.out = out;
+        this.chunkType = chunkType;
+        this.chunk = new byte[chunkSize];
+        startChunk();
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private void flushChunk() throws IOException {
+        writeInt(chunkPos);
+        writeInt(chunkType);
+        out.write(chunk, 0, chunkPos);
+        writeInt((int)crc32.getValue());
+        chunkPos = 0;
+        wroteChunk = true;
+        startChunk();
+    }
+
+    private void startChunk() {
+        crc32.reset();
+        crc32.update(chunkType >>> 24);
+        crc32.update(chunkType >>> 16);
+        crc32.update(chunkType >>> 8);
+        crc32.update(chunkType);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        while (len > 0) {
+            int count = Math.min(len, chunk.length - chunkPos);
+            System.arraycopy(b, off, chunk, chunkPos, count);
+            crc32.update(b, off, count);
+            chunkPos += count;
+            off += count;
+            len -= count;
+            if (chunkPos == chunk.length)
+                flushChunk();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        /* a payload that's an exact multiple of the chunk size has already been written */
+        if (chunkPos > 0 || !wroteChunk)
+            flushChunk();
+        closed = true;
+        out.flush();
+    }
+}
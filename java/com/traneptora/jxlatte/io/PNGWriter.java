@@ -1,12 +1,18 @@
 package com.traneptora.jxlatte.io;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
@@ -38,6 +44,22 @@ public class PNGWriter {
     private int tf;
     private int maxValue;
     private boolean writeSrgbIcc = false;
+    private boolean premultiplied;
+    private boolean coerce;
+    private float[] intScale;
+    private int threads = 1;
+    private ExecutorService executor;
+    private int filter = JXLOptions.PNG_FILTER_NONE;
+    /* fetched by write before any band is dispatched, so the bands never touch the ImageBuffers */
+    private int[][] intSamples;
+    private float[][] floatSamples;
+    private int[] rowOffsets;
+    private int[] strides;
+
+    /* aim for bands of roughly this many uncompressed bytes when deflating in parallel */
+    private static final int BAND_SIZE = 1 << 20;
+    /* the deflate window, the most a band can refer back into the previous one */
+    private static final int WINDOW_SIZE = 1 << 15;
 
     public PNGWriter(JXLImage image) {
         this(image, -1, false, JXLOptions.PEAK_DETECT_AUTO);
@@ -76,45 +98,71 @@ public class PNGWriter {
             this.colorMode = alphaIndex >= 0 ? 6 : 2;
             this.colorChannels = 3;
         }
-        boolean coerce = image.isAlphaPremultiplied();
-        this.buffer = image.getBuffer(true);
-        if (!coerce) {
-            for (int c = 0; c < buffer.length; c++) {
-                if (buffer[c].isInt() && image.getTaggedBitDepth(c) != bitDepth) {
-                    coerce = true;
-                    break;
-                }
-            }
-        }
-        if (coerce) {
-            for (int c = 0; c < buffer.length; c++) {
-                buffer[c].castToFloat(image.getTaggedBitDepth(c));
-            }
-        }
-        if (image.isAlphaPremultiplied()) {
-            float[][] a = buffer[alphaIndex].getFloatBuffer();
-            for (int c = 0; c < colorChannels; c++) {
-                float[][] buff = buffer[c].getFloatBuffer();
-                for (int y = 0; y < buffer[c].height; y++) {
-                    for (int x = 0; x < buffer[c].width; x++) {
-                        buff[y][x] /= a[y][x];
-                    }
-                }
-            }
-        }
-        for (int c = 0; c < buffer.length; c++) {
-            if (buffer[c].isInt() && image.getTaggedBitDepth(c) == bitDepth) {
-                buffer[c].clamp(maxValue);
-            } else {
-                buffer[c].castToIntWithMax(maxValue);
-            }            
+        this.premultiplied = image.isAlphaPremultiplied();
+        /* the samples are converted a row at a time as they're written, so we don't copy */
+        ImageBuffer[] imageBuffer = image.getBuffer(false);
+        int channels = colorChannels + (alphaIndex >= 0 ? 1 : 0);
+        this.buffer = new ImageBuffer[channels];
+        this.intScale = new float[channels];
+        boolean coerce = premultiplied;
+        for (int c = 0; c < channels; c++) {
+            int ic = c < colorChannels ? c : colorChannels + alphaIndex;
+            buffer[c] = imageBuffer[ic];
+            int taggedDepth = image.getTaggedBitDepth(ic);
+            intScale[c] = 1.0f / ~(~0 << taggedDepth);
+            if (buffer[c].isInt() && taggedDepth != bitDepth)
+                coerce = true;
         }
+        this.coerce = coerce;
     }
 
     public void setWriteSrgbIcc(boolean force) {
         this.writeSrgbIcc = force;
     }
 
+    /**
+     * One of the JXLOptions.PNG_FILTER constants. The default is none.
+     */
+    public void setFilter(int filter) {
+        if (filter < JXLOptions.PNG_FILTER_NONE || filter > JXLOptions.PNG_FILTER_ADAPTIVE)
+            throw new IllegalArgumentException("Invalid filter: " + filter);
+        this.filter = filter;
+    }
+
+    /**
+     * Deflate bands of rows on this many threads, 0 for auto. The default is 1.
+     */
+    public void setThreads(int threads) {
+        if (threads < 0)
+            throw new IllegalArgumentException("Illegal number of threads: " + threads);
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Deflate the bands on this executor, e.g. the decoder's, rather than on the common pool.
+     * The writer doesn't shut it down.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    private void fetchSamples() {
+        int channels = buffer.length;
+        intSamples = new int[channels][];
+        floatSamples = new float[channels][];
+        rowOffsets = new int[channels];
+        strides = new int[channels];
+        for (int c = 0; c < channels; c++) {
+            ImageBuffer b = buffer[c];
+            if (b.isInt())
+                intSamples[c] = b.getFlatIntBuffer();
+            else
+                floatSamples[c] = b.getFlatFloatBuffer();
+            rowOffsets[c] = b.getRowOffset(0);
+            strides[c] = b.getStride();
+        }
+    }
+
     private void writeIHDR() throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         DataOutputStream dout = new DataOutputStream(bout);
@@ -181,34 +229,329 @@ public class PNGWriter {
         out.writeInt((int)crc32.getValue());
     }
 
-    private void writeSample(DataOutput dout, int sample) throws IOException {
-        if (bitDepth == 8)
-            dout.writeByte(sample);
-        else
-            dout.writeShort(sample);
+    /**
+     * Converts one row of every written channel to clamped ints of the output depth.
+     * floatRow and alphaRow are scratch space, at least width long.
+     */
+    private void convertRow(int y, int[][] rows, float[] floatRow, float[] alphaRow) {
+        int alpha = rows.length - 1;
+        boolean alphaRead = false;
+        for (int c = 0; c < rows.length; c++) {
+            int[] row = rows[c];
+            int[] ib = intSamples[c];
+            if (ib != null && !coerce) {
+                int offset = rowOffsets[c] + y * strides[c];
+                for (int x = 0; x < width; x++) {
+                    int v = ib[offset + x];
+                    row[x] = v < 0 ? 0 : v > maxValue ? maxValue : v;
+                }
+                continue;
+            }
+            readFloatRow(c, y, floatRow);
+            if (premultiplied && c < colorChannels) {
+                if (!alphaRead) {
+                    readFloatRow(alpha, y, alphaRow);
+                    alphaRead = true;
+                }
+                for (int x = 0; x < width; x++)
+                    floatRow[x] /= alphaRow[x];
+            }
+            for (int x = 0; x < width; x++) {
+                int v = (int)(floatRow[x] * maxValue + 0.5f);
+                row[x] = v < 0 ? 0 : v > maxValue ? maxValue : v;
+            }
+        }
     }
 
-    private void writeIDAT() throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        bout.write(new byte[]{'I', 'D', 'A', 'T'});
-        DataOutputStream dout = new DataOutputStream(new DeflaterOutputStream(bout, new Deflater(deflateLevel)));
-        for (int y = 0; y < height; y++) {
-            dout.writeByte(0); // filter 0
+    /**
+     * Copies row y of channel c into dest as floats, scaling ints by their tagged depth.
+     */
+    private void readFloatRow(int c, int y, float[] dest) {
+        int offset = rowOffsets[c] + y * strides[c];
+        int[] ib = intSamples[c];
+        if (ib != null) {
+            float scale = intScale[c];
+            for (int x = 0; x < width; x++)
+                dest[x] = ib[offset + x] * scale;
+        } else {
+            System.arraycopy(floatSamples[c], offset, dest, 0, width);
+        }
+    }
+
+    private int getScanlineLength() {
+        return 1 + width * buffer.length * (bitDepth >> 3);
+    }
+
+    /**
+     * Turns rows of the image into filtered scanlines. Rows should be requested in order,
+     * as the previous row is kept around for the filters that need it.
+     * Each thread needs its own encoder.
+     */
+    private class ScanlineEncoder {
+        private int[][] rows = new int[buffer.length][width];
+        private float[] floatRow = new float[width];
+        private float[] alphaRow = new float[width];
+        private int bpp = buffer.length * (bitDepth >> 3);
+        private byte[] raw;
+        private byte[] prevRaw;
+        private int lastY = -1;
+        private byte[][] candidates;
+
+        public ScanlineEncoder() {
+            int length = getScanlineLength() - 1;
+            raw = new byte[length];
+            prevRaw = new byte[length];
+            if (filter == JXLOptions.PNG_FILTER_ADAPTIVE)
+                candidates = new byte[5][length];
+        }
+
+        private void encodeRaw(int y, byte[] dest) {
+            convertRow(y, rows, floatRow, alphaRow);
+            int channels = rows.length;
+            boolean wide = bitDepth == 16;
+            int pos = 0;
             for (int x = 0; x < width; x++) {
-                for (int c = 0; c < colorChannels; c++) {
-                    writeSample(dout, buffer[c].getIntBuffer()[y][x]);
+                for (int c = 0; c < channels; c++) {
+                    int sample = rows[c][x];
+                    if (wide)
+                        dest[pos++] = (byte)(sample >>> 8);
+                    dest[pos++] = (byte)sample;
                 }
-                if (alphaIndex >= 0)
-                    writeSample(dout, buffer[colorChannels + alphaIndex].getIntBuffer()[y][x]);
             }
         }
-        dout.close();
-        byte[] buff = bout.toByteArray();
-        out.writeInt(buff.length - 4);
-        out.write(buff);
-        crc32.reset();
-        crc32.update(buff);
-        out.writeInt((int)crc32.getValue());
+
+        /**
+         * Writes the filter byte and filtered scanline of row y into dest at pos.
+         */
+        public void encode(int y, byte[] dest, int pos) {
+            if (filter != JXLOptions.PNG_FILTER_NONE) {
+                if (y > 0 && lastY != y - 1)
+                    encodeRaw(y - 1, raw);
+                byte[] tmp = prevRaw;
+                prevRaw = raw;
+                raw = tmp;
+            }
+            encodeRaw(y, raw);
+            lastY = y;
+            boolean first = y == 0;
+            int type = filter;
+            if (filter == JXLOptions.PNG_FILTER_ADAPTIVE) {
+                long best = Long.MAX_VALUE;
+                for (int f = 0; f < 5; f++) {
+                    applyFilter(f, first, candidates[f], 0);
+                    long sum = absSum(candidates[f]);
+                    if (sum < best) {
+                        best = sum;
+                        type = f;
+                    }
+                }
+                dest[pos] = (byte)type;
+                System.arraycopy(candidates[type], 0, dest, pos + 1, raw.length);
+            } else {
+                dest[pos] = (byte)type;
+                applyFilter(type, first, dest, pos + 1);
+            }
+        }
+
+        /**
+         * @return the sum of the absolute values of the filtered bytes as signed,
+         * the usual heuristic for picking a filter
+         */
+        private long absSum(byte[] filtered) {
+            long sum = 0;
+            for (int i = 0; i < filtered.length; i++)
+                sum += Math.abs(filtered[i]);
+            return sum;
+        }
+
+        /**
+         * Filters the current row into dest.
+         */
+        private void applyFilter(int type, boolean first, byte[] dest, int pos) {
+            byte[] raw = this.raw;
+            byte[] prev = this.prevRaw;
+            int length = raw.length;
+            switch (type) {
+                case JXLOptions.PNG_FILTER_NONE:
+                    System.arraycopy(raw, 0, dest, pos, length);
+                    return;
+                case JXLOptions.PNG_FILTER_SUB:
+                    for (int i = 0; i < length; i++) {
+                        int a = i >= bpp ? raw[i - bpp] : 0;
+                        dest[pos + i] = (byte)(raw[i] - a);
+                    }
+                    return;
+                case JXLOptions.PNG_FILTER_UP:
+                    for (int i = 0; i < length; i++) {
+                        int b = first ? 0 : prev[i];
+                        dest[pos + i] = (byte)(raw[i] - b);
+                    }
+                    return;
+                case JXLOptions.PNG_FILTER_AVERAGE:
+                    for (int i = 0; i < length; i++) {
+                        int a = i >= bpp ? raw[i - bpp] & 0xFF : 0;
+                        int b = first ? 0 : prev[i] & 0xFF;
+                        dest[pos + i] = (byte)(raw[i] - ((a + b) >>> 1));
+                    }
+                    return;
+                case JXLOptions.PNG_FILTER_PAETH:
+                    for (int i = 0; i < length; i++) {
+                        int a = i >= bpp ? raw[i - bpp] & 0xFF : 0;
+                        int b = first ? 0 : prev[i] & 0xFF;
+                        int c = i >= bpp && !first ? prev[i - bpp] & 0xFF : 0;
+                        int p = a + b - c;
+                        int pa = Math.abs(p - a);
+                        int pb = Math.abs(p - b);
+                        int pc = Math.abs(p - c);
+                        int pred = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                        dest[pos + i] = (byte)(raw[i] - pred);
+                    }
+                    return;
+                default:
+                    throw new IllegalStateException("Invalid filter type: " + type);
+            }
+        }
+    }
+
+    private void writeIDAT() throws IOException {
+        int scanlineLength = getScanlineLength();
+        int bandRows = Math.max(1, BAND_SIZE / scanlineLength);
+        if (threads > 1 && height > bandRows) {
+            writeIDATParallel(bandRows);
+            return;
+        }
+        ScanlineEncoder encoder = new ScanlineEncoder();
+        byte[] scanline = new byte[scanlineLength];
+        Deflater deflater = new Deflater(deflateLevel);
+        try (OutputStream dout = new DeflaterOutputStream(new PNGChunkOutputStream(out, 0x49_44_41_54), deflater)) {
+            for (int y = 0; y < height; y++) {
+                encoder.encode(y, scanline, 0);
+                dout.write(scanline);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static class DeflatedBand {
+        public byte[] data;
+        public int length;
+        public int adler;
+        public int rawLength;
+    }
+
+    /**
+     * Deflates rows [yStart, yEnd) as raw deflate blocks that can be concatenated with the other bands.
+     * The tail of the previous band is set as the dictionary so matches can still cross band borders.
+     */
+    private DeflatedBand deflateBand(int yStart, int yEnd, boolean last) {
+        int scanlineLength = getScanlineLength();
+        int dictRows = Math.min(yStart, (WINDOW_SIZE + scanlineLength - 1) / scanlineLength);
+        byte[] raw = new byte[(yEnd - yStart + dictRows) * scanlineLength];
+        ScanlineEncoder encoder = new ScanlineEncoder();
+        for (int y = yStart - dictRows; y < yEnd; y++)
+            encoder.encode(y, raw, (y - yStart + dictRows) * scanlineLength);
+        int dictLength = Math.min(dictRows * scanlineLength, WINDOW_SIZE);
+        int rawOffset = dictRows * scanlineLength;
+        int rawLength = raw.length - rawOffset;
+
+        DeflatedBand band = new DeflatedBand();
+        Adler32 adler = new Adler32();
+        adler.update(raw, rawOffset, rawLength);
+        band.adler = (int)adler.getValue();
+        band.rawLength = rawLength;
+
+        Deflater deflater = new Deflater(deflateLevel, true);
+        try {
+            if (dictLength > 0)
+                deflater.setDictionary(raw, rawOffset - dictLength, dictLength);
+            deflater.setInput(raw, rawOffset, rawLength);
+            if (last)
+                deflater.finish();
+            byte[] data = new byte[Math.max(rawLength >> 2, 1 << 12)];
+            int length = 0;
+            while (true) {
+                if (length == data.length)
+                    data = Arrays.copyOf(data, data.length << 1);
+                int count = deflater.deflate(data, length, data.length - length,
+                    last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                length += count;
+                /* a sync flush is complete once it doesn't fill the buffer */
+                if (last ? deflater.finished() : length < data.length)
+                    break;
+            }
+            band.data = data;
+            band.length = length;
+        } finally {
+            deflater.end();
+        }
+        return band;
+    }
+
+    /**
+     * Equivalent to the Adler-32 of the concatenation of two buffers,
+     * the second of which was len2 bytes long.
+     */
+    private static int combineAdler32(int adler1, int adler2, long len2) {
+        final long base = 65521L;
+        long rem = len2 % base;
+        long sum1 = adler1 & 0xFFFFL;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFFL) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFFL) + ((adler2 >>> 16) & 0xFFFFL) + base - rem;
+        if (sum1 >= base)
+            sum1 -= base;
+        if (sum1 >= base)
+            sum1 -= base;
+        if (sum2 >= (base << 1))
+            sum2 -= (base << 1);
+        if (sum2 >= base)
+            sum2 -= base;
+        return (int)(sum1 | (sum2 << 16));
+    }
+
+    private int getZlibHeader() {
+        int level;
+        if (deflateLevel == Deflater.DEFAULT_COMPRESSION || deflateLevel == 6)
+            level = 2;
+        else if (deflateLevel < 2)
+            level = 0;
+        else if (deflateLevel < 6)
+            level = 1;
+        else
+            level = 3;
+        // deflate with a 32k window
+        int header = 0x78_00 | (level << 6);
+        return header + (31 - header % 31) % 31;
+    }
+
+    private void writeIDATParallel(int bandRows) throws IOException {
+        ExecutorService executor = this.executor != null ? this.executor : ForkJoinPool.commonPool();
+        try (OutputStream idat = new PNGChunkOutputStream(out, 0x49_44_41_54)) {
+            int header = getZlibHeader();
+            idat.write(header >>> 8);
+            idat.write(header);
+            /* bound the bands held in memory, but keep every thread busy */
+            Deque<CompletableFuture<DeflatedBand>> pending = new ArrayDeque<>();
+            int adler = 1;
+            for (int y = 0; y < height || !pending.isEmpty();) {
+                if (y < height && pending.size() < 2 * threads) {
+                    final int yStart = y;
+                    final int yEnd = Math.min(height, y + bandRows);
+                    pending.add(CompletableFuture.supplyAsync(
+                        () -> deflateBand(yStart, yEnd, yEnd == height), executor));
+                    y = yEnd;
+                    continue;
+                }
+                DeflatedBand band = pending.remove().join();
+                idat.write(band.data, 0, band.length);
+                adler = combineAdler32(adler, band.adler, band.rawLength);
+            }
+            idat.write(adler >>> 24);
+            idat.write(adler >>> 16);
+            idat.write(adler >>> 8);
+            idat.write(adler);
+        }
     }
 
     public void write(OutputStream outputStream) throws IOException {
@@ -219,6 +562,7 @@ public class PNGWriter {
             writeICCP();
         else
             writeSRGB();
+        fetchSamples();
         writeIDAT();
         out.writeInt(0);
         out.writeInt(0x49_45_4E_44); // IEND
@@ -1,5 +1,13 @@
 package com.traneptora.jxlatte.util;
 
+/**
+ * A single channel of samples, either int or float.
+ *
+ * The samples are stored either as jagged rows, or as one flat planar array
+ * with a row stride and an optional border of padding samples on every side.
+ * The layout is fixed when the buffer is constructed. Requesting the other layout's
+ * arrays throws; use toFlat or toJagged to get a converted copy instead.
+ */
 public class ImageBuffer {
 
     public static final int TYPE_INT = 0;
@@ -9,7 +17,13 @@ public class ImageBuffer {
     public final int height;
     public final int width;
 
+    /* jagged rows, or null if flat */
     private Object[] buffer;
+    /* int[] or float[], or null if jagged */
+    private Object flatBuffer;
+    private int border;
+    private int stride;
+    private int offset;
 
     public ImageBuffer(ImageBuffer buffer) {
         this(buffer, true);
@@ -19,6 +33,18 @@ public class ImageBuffer {
         this.type = buffer.type;
         this.height = buffer.height;
         this.width = buffer.width;
+        if (buffer.isFlat()) {
+            this.border = buffer.border;
+            this.stride = buffer.stride;
+            this.offset = buffer.offset;
+            if (copyData) {
+                this.flatBuffer = type == TYPE_INT ? ((int[])buffer.flatBuffer).clone()
+                    : ((float[])buffer.flatBuffer).clone();
+            } else {
+                this.flatBuffer = allocateFlat(type, stride * (height + 2 * border));
+            }
+            return;
+        }
         if (this.type == TYPE_INT) {
             this.buffer = new int[height][width];
         } else {
@@ -31,11 +57,33 @@ public class ImageBuffer {
         }
     }
 
+    /**
+     * Creates a flat copy of the given buffer with a border of the given size.
+     * The border is left unpopulated, see mirrorBorder.
+     */
+    public ImageBuffer(ImageBuffer buffer, int border) {
+        this(buffer.type, buffer.height, buffer.width, border);
+        if (buffer.isFlat()) {
+            for (int y = 0; y < height; y++)
+                System.arraycopy(buffer.flatBuffer, buffer.getRowOffset(y), flatBuffer, getRowOffset(y), width);
+        } else {
+            for (int y = 0; y < height; y++)
+                System.arraycopy(buffer.buffer[y], 0, flatBuffer, getRowOffset(y), width);
+        }
+    }
+
     /* used for System.arraycopy */
     public Object[] getBackingBuffer() {
+        requireJagged();
         return buffer;
     }
 
+    /* used for System.arraycopy, together with getRowOffset */
+    public Object getFlatBackingBuffer() {
+        requireFlat();
+        return flatBuffer;
+    }
+
     public ImageBuffer(float[][] buffer) {
         this.type = TYPE_FLOAT;
         this.height = buffer.length;
@@ -51,10 +99,7 @@ public class ImageBuffer {
     }
 
     public ImageBuffer(int type, int height, int width) {
-        if (type != TYPE_INT && type != TYPE_FLOAT)
-            throw new IllegalArgumentException();
-        if (height < 0 || height > (1 << 30) || width < 0 || width > (1 << 30))
-            throw new IllegalArgumentException();
+        checkArguments(type, height, width, 0);
 
         this.type = type;
         this.height =  height;
@@ -67,18 +112,164 @@ public class ImageBuffer {
         }
     }
 
+    /**
+     * Creates a flat planar buffer with a border of the given size on every side.
+     */
+    public ImageBuffer(int type, int height, int width, int border) {
+        checkArguments(type, height, width, border);
+        this.type = type;
+        this.height = height;
+        this.width = width;
+        this.border = border;
+        this.stride = width + 2 * border;
+        this.offset = border * stride + border;
+        long size = (long)stride * (height + 2 * border);
+        if (size > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Buffer too large for flat storage");
+        this.flatBuffer = allocateFlat(type, (int)size);
+    }
+
+    private static void checkArguments(int type, int height, int width, int border) {
+        if (type != TYPE_INT && type != TYPE_FLOAT)
+            throw new IllegalArgumentException();
+        if (height < 0 || height > (1 << 30) || width < 0 || width > (1 << 30))
+            throw new IllegalArgumentException();
+        if (border < 0 || border > 256)
+            throw new IllegalArgumentException();
+    }
+
+    private static Object allocateFlat(int type, int size) {
+        return type == TYPE_INT ? new int[size] : new float[size];
+    }
+
+    private void requireFlat() {
+        if (flatBuffer == null)
+            throw new IllegalStateException("This is not a flat buffer");
+    }
+
+    private void requireJagged() {
+        if (buffer == null)
+            throw new IllegalStateException("This is not a jagged buffer");
+    }
+
+    /**
+     * @return this buffer if it's flat, otherwise a flat copy of it without a border
+     */
+    public ImageBuffer toFlat() {
+        return isFlat() ? this : new ImageBuffer(this, 0);
+    }
+
+    /**
+     * @return this buffer if it's jagged, otherwise a jagged copy of it
+     */
+    public ImageBuffer toJagged() {
+        if (!isFlat())
+            return this;
+        Object[] newBuffer = type == TYPE_INT ? new int[height][width] : new float[height][width];
+        for (int y = 0; y < height; y++)
+            System.arraycopy(flatBuffer, getRowOffset(y), newBuffer[y], 0, width);
+        return type == TYPE_INT ? new ImageBuffer((int[][])newBuffer) : new ImageBuffer((float[][])newBuffer);
+    }
+
+    public boolean isFlat() {
+        return flatBuffer != null;
+    }
+
+    /**
+     * Only meaningful for flat buffers.
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Only meaningful for flat buffers.
+     */
+    public int getBorder() {
+        return border;
+    }
+
+    /**
+     * Index of the sample (y, 0) in the flat buffer. Only meaningful for flat buffers.
+     */
+    public int getRowOffset(int y) {
+        return offset + y * stride;
+    }
+
+    /**
+     * Fills the border of a flat buffer by mirroring the samples at the edges,
+     * the same way as MathHelper.mirrorCoordinate.
+     */
+    public void mirrorBorder() {
+        requireFlat();
+        if (border == 0 || height == 0 || width == 0)
+            return;
+        if (type == TYPE_INT)
+            mirrorBorder((int[])flatBuffer);
+        else
+            mirrorBorder((float[])flatBuffer);
+    }
+
+    private void mirrorBorder(int[] buf) {
+        for (int y = 0; y < height; y++) {
+            int row = getRowOffset(y);
+            for (int x = 1; x <= border; x++) {
+                buf[row - x] = buf[row + MathHelper.mirrorCoordinate(-x, width)];
+                buf[row + width - 1 + x] = buf[row + MathHelper.mirrorCoordinate(width - 1 + x, width)];
+            }
+        }
+        for (int y = 1; y <= border; y++) {
+            System.arraycopy(buf, getRowOffset(MathHelper.mirrorCoordinate(-y, height)) - border,
+                buf, getRowOffset(-y) - border, stride);
+            System.arraycopy(buf, getRowOffset(MathHelper.mirrorCoordinate(height - 1 + y, height)) - border,
+                buf, getRowOffset(height - 1 + y) - border, stride);
+        }
+    }
+
+    private void mirrorBorder(float[] buf) {
+        for (int y = 0; y < height; y++) {
+            int row = getRowOffset(y);
+            for (int x = 1; x <= border; x++) {
+                buf[row - x] = buf[row + MathHelper.mirrorCoordinate(-x, width)];
+                buf[row + width - 1 + x] = buf[row + MathHelper.mirrorCoordinate(width - 1 + x, width)];
+            }
+        }
+        for (int y = 1; y <= border; y++) {
+            System.arraycopy(buf, getRowOffset(MathHelper.mirrorCoordinate(-y, height)) - border,
+                buf, getRowOffset(-y) - border, stride);
+            System.arraycopy(buf, getRowOffset(MathHelper.mirrorCoordinate(height - 1 + y, height)) - border,
+                buf, getRowOffset(height - 1 + y) - border, stride);
+        }
+    }
+
     public float[][] getFloatBuffer() {
         if (type != TYPE_FLOAT)
             throw new IllegalStateException("This is not a float buffer");
+        requireJagged();
         return (float[][]) buffer;
     }
 
     public int[][] getIntBuffer() {
         if (type != TYPE_INT)
             throw new IllegalStateException("This is not an int buffer");
+        requireJagged();
         return (int[][]) buffer;
     }
 
+    public float[] getFlatFloatBuffer() {
+        if (type != TYPE_FLOAT)
+            throw new IllegalStateException("This is not a float buffer");
+        requireFlat();
+        return (float[]) flatBuffer;
+    }
+
+    public int[] getFlatIntBuffer() {
+        if (type != TYPE_INT)
+            throw new IllegalStateException("This is not an int buffer");
+        requireFlat();
+        return (int[]) flatBuffer;
+    }
+
     public boolean isInt() {
         return type == TYPE_INT;
     }
@@ -114,9 +305,18 @@ public class ImageBuffer {
             throw new IllegalStateException("This is already a float buffer");
         if (maxValue < 1)
             throw new IllegalArgumentException("invalid Max Value");
+        float scaleFactor = 1.0f / maxValue;
+        if (isFlat()) {
+            int[] oldBuffer = (int[]) flatBuffer;
+            float[] newBuffer = new float[oldBuffer.length];
+            for (int i = 0; i < oldBuffer.length; i++)
+                newBuffer[i] = oldBuffer[i] * scaleFactor;
+            this.flatBuffer = newBuffer;
+            this.type = TYPE_FLOAT;
+            return;
+        }
         int[][] oldBuffer = (int[][]) buffer;
         float[][] newBuffer = new float[height][width];
-        float scaleFactor = 1.0f / maxValue;
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
                 newBuffer[y][x] = oldBuffer[y][x] * scaleFactor;
@@ -131,9 +331,20 @@ public class ImageBuffer {
             throw new IllegalStateException("This is already an int buffer");
         if (maxValue < 1)
             throw new IllegalArgumentException("invalid Max Value");
+        float scaleFactor = maxValue;
+        if (isFlat()) {
+            float[] oldBuffer = (float[]) flatBuffer;
+            int[] newBuffer = new int[oldBuffer.length];
+            for (int i = 0; i < oldBuffer.length; i++) {
+                int v = (int)(oldBuffer[i] * scaleFactor + 0.5f);
+                newBuffer[i] = v < 0 ? 0 : v > maxValue ? maxValue : v;
+            }
+            this.flatBuffer = newBuffer;
+            this.type = TYPE_INT;
+            return;
+        }
         float[][] oldBuffer = (float[][]) buffer;
         int[][] newBuffer = new int[height][width];
-        float scaleFactor = maxValue;
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
                 int v = (int)(oldBuffer[y][x] * scaleFactor + 0.5f);
@@ -150,6 +361,14 @@ public class ImageBuffer {
     public void clamp(int maxValue) {
         if (type == TYPE_FLOAT)
             throw new IllegalArgumentException("This is a float buffer");
+        if (isFlat()) {
+            int[] buf = (int[]) flatBuffer;
+            for (int i = 0; i < buf.length; i++) {
+                int v = buf[i];
+                buf[i] = v < 0 ? 0 : v > maxValue ? maxValue : v;
+            }
+            return;
+        }
         int[][] buf = (int[][])buffer;
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
@@ -165,6 +384,14 @@ public class ImageBuffer {
     public void clamp() {
         if (type == TYPE_INT)
             throw new IllegalArgumentException("This is an int buffer");
+        if (isFlat()) {
+            float[] buf = (float[]) flatBuffer;
+            for (int i = 0; i < buf.length; i++) {
+                float v = buf[i];
+                buf[i] = v < 0.0f ? 0.0f : v > 1.0f ? 1.0f : v;
+            }
+            return;
+        }
         float[][] buf = (float[][])buffer;
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
@@ -176,7 +403,7 @@ public class ImageBuffer {
 
     @Override
     public String toString() {
-        return String.format("ImageBuffer [type=%s, height=%s, width=%s]", type, height, width);
+        return String.format("ImageBuffer [type=%s, height=%s, width=%s, flat=%s]", type, height, width, isFlat());
     }
 
     @Override
@@ -13,19 +13,15 @@ public final class MathHelper {
 
     private static final Point ZERO = new Point();
 
-    // s, n, k
-    private static float[][][] cosineLut = new float[9][][];
+    // 1 / (2 * cos(pi * (2k + 1) / (2N))) for N = 1 << l
+    private static final float[][] dctMultipliers = new float[9][];
 
     static {
-        final double root2 = StrictMath.sqrt(2.0D);
-        for (int l = 0; l < cosineLut.length; l++) {
-            int s = 1 << l;
-            cosineLut[l] = new float[s - 1][s];
-            for (int n = 0; n < cosineLut[l].length; n++) {
-                for (int k = 0; k < cosineLut[l][n].length; k++) {
-                    cosineLut[l][n][k] = (float)(root2 * StrictMath.cos(Math.PI * (n + 1) * (k + 0.5D) / s));
-                }
-            }
+        for (int l = 1; l < dctMultipliers.length; l++) {
+            int n = 1 << l;
+            dctMultipliers[l] = new float[n / 2];
+            for (int k = 0; k < n / 2; k++)
+                dctMultipliers[l][k] = (float)(0.5D / StrictMath.cos(Math.PI * (2 * k + 1) / (2 * n)));
         }
     }
 
@@ -65,74 +61,210 @@ public final class MathHelper {
         return absErf;
     }
 
-    public static void inverseDCTHorizontal(float[] src, float[] dest,
-            int xStartIn, int xStartOut, int xLogLength, int xLength) {
-        Arrays.fill(dest, xStartOut, xStartOut + xLength, src[xStartIn]);
-        float[][] lutX = cosineLut[xLogLength];
-        for (int n = 1; n < xLength; n++) {
-            final float[] lut = lutX[n - 1];
-            final float s2 = src[xStartIn + n];
-            for (int k = 0; k < xLength; k++)
-                dest[xStartOut + k] += s2 * lut[k];
+    private static void inverseDCT4(final float[] d, final int off) {
+        final float[] m2 = dctMultipliers[1];
+        final float[] m4 = dctMultipliers[2];
+        final float x0 = d[off];
+        final float x1 = d[off + 1];
+        final float x2 = d[off + 2] * m2[0];
+        final float x3 = d[off + 3];
+        final float e0 = x0 + x2;
+        final float e1 = x0 - x2;
+        final float z1 = (x1 + x3) * m2[0];
+        final float o0 = (x1 + z1) * m4[0];
+        final float o1 = (x1 - z1) * m4[1];
+        d[off] = e0 + o0;
+        d[off + 1] = e1 + o1;
+        d[off + 2] = e1 - o1;
+        d[off + 3] = e0 - o0;
+    }
+
+    private static void inverseDCT8(final float[] d, final int off) {
+        final float[] m8 = dctMultipliers[3];
+        final float x1 = d[off + 1];
+        final float x3 = d[off + 3];
+        final float x5 = d[off + 5];
+        final float x7 = d[off + 7];
+        d[off + 1] = d[off + 2];
+        d[off + 2] = d[off + 4];
+        d[off + 3] = d[off + 6];
+        d[off + 4] = x1;
+        d[off + 5] = x3 + x1;
+        d[off + 6] = x5 + x3;
+        d[off + 7] = x7 + x5;
+        inverseDCT4(d, off);
+        inverseDCT4(d, off + 4);
+        final float e0 = d[off];
+        final float e1 = d[off + 1];
+        final float e2 = d[off + 2];
+        final float e3 = d[off + 3];
+        final float o0 = d[off + 4] * m8[0];
+        final float o1 = d[off + 5] * m8[1];
+        final float o2 = d[off + 6] * m8[2];
+        final float o3 = d[off + 7] * m8[3];
+        d[off] = e0 + o0;
+        d[off + 1] = e1 + o1;
+        d[off + 2] = e2 + o2;
+        d[off + 3] = e3 + o3;
+        d[off + 4] = e3 - o3;
+        d[off + 5] = e2 - o2;
+        d[off + 6] = e1 - o1;
+        d[off + 7] = e0 - o0;
+    }
+
+    /*
+     * Unscaled DCT-III of d[off, off + n) in place, via the even/odd split
+     * y[k] = E[k] + O[k] and y[n - 1 - k] = E[k] - O[k].
+     * tmp must have room for n floats starting at tOff.
+     */
+    private static void inverseDCT(final float[] d, final int off, final int logN,
+            final float[] tmp, final int tOff) {
+        switch (logN) {
+            case 0:
+                return;
+            case 1:
+                final float x0 = d[off];
+                final float x1 = d[off + 1] * dctMultipliers[1][0];
+                d[off] = x0 + x1;
+                d[off + 1] = x0 - x1;
+                return;
+            case 2:
+                inverseDCT4(d, off);
+                return;
+            case 3:
+                inverseDCT8(d, off);
+                return;
+        }
+        final int n = 1 << logN;
+        final int half = n >> 1;
+        tmp[tOff] = d[off];
+        tmp[tOff + half] = d[off + 1];
+        for (int m = 1; m < half; m++) {
+            tmp[tOff + m] = d[off + 2 * m];
+            tmp[tOff + half + m] = d[off + 2 * m + 1] + d[off + 2 * m - 1];
+        }
+        inverseDCT(tmp, tOff, logN - 1, d, off);
+        inverseDCT(tmp, tOff + half, logN - 1, d, off);
+        final float[] mult = dctMultipliers[logN];
+        for (int k = 0; k < half; k++) {
+            final float e = tmp[tOff + k];
+            final float o = tmp[tOff + half + k] * mult[k];
+            d[off + k] = e + o;
+            d[off + n - 1 - k] = e - o;
         }
     }
 
-    public static void forwardDCTHorizontal(float[] src, float[] dest,
-            int xStartIn, int xStartOut, int xLogLength, int xLength) {
-        final float invLength = 1f / xLength;
-        float d2 = src[xStartIn];
-        for (int x = 1; x < xLength; ++x)
-            d2 += src[xStartIn + x];
-        dest[xStartOut] = d2 * invLength;
-        for (int k = 1; k < xLength; ++k) {
-            final float[] lut = cosineLut[xLogLength][k - 1];
-            d2 = src[xStartIn] * lut[0];
-            for (int n = 1; n < xLength; ++n)
-                d2 += src[xStartIn + n] * lut[n];
-            dest[xStartOut + k] = d2 * invLength;
+    /*
+     * Unscaled DCT-II of d[off, off + n) in place, the transpose of inverseDCT.
+     */
+    private static void forwardDCT(final float[] d, final int off, final int logN,
+            final float[] tmp, final int tOff) {
+        if (logN == 0)
+            return;
+        final int n = 1 << logN;
+        final int half = n >> 1;
+        final float[] mult = dctMultipliers[logN];
+        for (int i = 0; i < half; i++) {
+            final float a = d[off + i];
+            final float b = d[off + n - 1 - i];
+            tmp[tOff + i] = a + b;
+            tmp[tOff + half + i] = (a - b) * mult[i];
         }
+        forwardDCT(tmp, tOff, logN - 1, d, off);
+        forwardDCT(tmp, tOff + half, logN - 1, d, off);
+        for (int m = 0; m < half - 1; m++) {
+            d[off + 2 * m] = tmp[tOff + m];
+            d[off + 2 * m + 1] = tmp[tOff + half + m] + tmp[tOff + half + m + 1];
+        }
+        d[off + n - 2] = tmp[tOff + half - 1];
+        d[off + n - 1] = tmp[tOff + n - 1];
+    }
+
+    /**
+     * Inverse DCT of d[off, off + 2^logN) in place, with the JPEG XL scaling
+     * (the DC coefficient is unscaled and the rest are multiplied by sqrt(2)).
+     * tmp must hold at least 2^logN floats.
+     */
+    public static void inverseDCT1D(float[] d, int off, int logN, float[] tmp) {
+        final int n = 1 << logN;
+        for (int i = 1; i < n; i++)
+            d[off + i] *= SQRT_2;
+        inverseDCT(d, off, logN, tmp, 0);
+    }
+
+    /**
+     * Forward DCT of d[off, off + 2^logN) in place, the inverse of inverseDCT1D.
+     * tmp must hold at least 2^logN floats.
+     */
+    public static void forwardDCT1D(float[] d, int off, int logN, float[] tmp) {
+        final int n = 1 << logN;
+        forwardDCT(d, off, logN, tmp, 0);
+        final float invLength = 1f / n;
+        final float scale = SQRT_2 * invLength;
+        d[off] *= invLength;
+        for (int i = 1; i < n; i++)
+            d[off + i] *= scale;
     }
 
+    /**
+     * If transposed, the output block is size.width by size.height.
+     * The scratch spaces must be at least 256x256.
+     */
     public static void inverseDCT2D(float[][] src, float[][] dest, Point startIn, Point startOut, Dimension size,
             float[][] scratchSpace0, float[][] scratchSpace1, boolean transposed) {
-        int logHeight = ceilLog2(size.height);
-        int logWidth = ceilLog2(size.width);
+        final int height = size.height;
+        final int width = size.width;
+        final int logHeight = ceilLog2(height);
+        final int logWidth = ceilLog2(width);
+        final float[] tmp = scratchSpace1[0];
         if (transposed) {
-            for (int y = 0; y < size.height; y++) {
-                inverseDCTHorizontal(src[startIn.y + y], scratchSpace1[y],
-                    startIn.x, 0, logWidth, size.width);
+            for (int y = 0; y < height; y++) {
+                final float[] row = scratchSpace0[y];
+                System.arraycopy(src[startIn.y + y], startIn.x, row, 0, width);
+                inverseDCT1D(row, 0, logWidth, tmp);
             }
-            transposeMatrixInto(scratchSpace1, scratchSpace0, ZERO, ZERO, size.height, size.width);
-            for (int y = 0; y < size.width; y++) {
-                inverseDCTHorizontal(scratchSpace0[y], dest[startOut.y + y],
-                    0, startOut.x, logHeight, size.height);
+            for (int x = 0; x < width; x++) {
+                final float[] d = dest[startOut.y + x];
+                for (int y = 0; y < height; y++)
+                    d[startOut.x + y] = scratchSpace0[y][x];
+                inverseDCT1D(d, startOut.x, logHeight, tmp);
             }
         } else {
-            transposeMatrixInto(src, scratchSpace0, startIn, ZERO, size.height, size.width);
-            for (int y = 0; y < size.width; y++) {
-                inverseDCTHorizontal(scratchSpace0[y], scratchSpace1[y],
-                    0, 0, logHeight, size.height);
+            for (int x = 0; x < width; x++) {
+                final float[] column = scratchSpace0[x];
+                for (int y = 0; y < height; y++)
+                    column[y] = src[startIn.y + y][startIn.x + x];
+                inverseDCT1D(column, 0, logHeight, tmp);
             }
-            transposeMatrixInto(scratchSpace1, scratchSpace0, ZERO, ZERO, size.width, size.height);
-            for (int y = 0; y < size.height; y++) {
-                inverseDCTHorizontal(scratchSpace0[y], dest[startOut.y + y],
-                    0, startOut.x, logWidth, size.width);
+            for (int y = 0; y < height; y++) {
+                final float[] d = dest[startOut.y + y];
+                for (int x = 0; x < width; x++)
+                    d[startOut.x + x] = scratchSpace0[x][y];
+                inverseDCT1D(d, startOut.x, logWidth, tmp);
             }
         }
     }
 
     public static void forwardDCT2D(float[][] src, float[][] dest, Point startIn, Point startOut,
             Dimension length, float[][] scratchSpace0, float[][] scratchSpace1) {
-        final int yLogLength = ceilLog2(length.height);
-        final int xLogLength = ceilLog2(length.width);
-        for (int y = 0; y < length.height; y++)
-            forwardDCTHorizontal(src[y + startIn.y], scratchSpace0[y],
-                startIn.x, 0, xLogLength, length.width);
-        transposeMatrixInto(scratchSpace0, scratchSpace1, ZERO, ZERO, length.height, length.width);
-        for (int x = 0; x < length.width; x++)
-            forwardDCTHorizontal(scratchSpace1[x], scratchSpace0[x],
-                0, 0, yLogLength, length.height);
-        transposeMatrixInto(scratchSpace0, dest, ZERO, startOut, length.width, length.height);
+        final int height = length.height;
+        final int width = length.width;
+        final int yLogLength = ceilLog2(height);
+        final int xLogLength = ceilLog2(width);
+        final float[] tmp = scratchSpace1[0];
+        final float[] column = scratchSpace1[1];
+        for (int y = 0; y < height; y++) {
+            final float[] row = scratchSpace0[y];
+            System.arraycopy(src[startIn.y + y], startIn.x, row, 0, width);
+            forwardDCT1D(row, 0, xLogLength, tmp);
+        }
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++)
+                column[y] = scratchSpace0[y][x];
+            forwardDCT1D(column, 0, yLogLength, tmp);
+            for (int y = 0; y < height; y++)
+                dest[startOut.y + y][startOut.x + x] = column[y];
+        }
     }
 
     public static void transposeMatrixInto(float[][] src, float[][] dest,
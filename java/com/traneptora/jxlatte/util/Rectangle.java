@@ -31,6 +31,25 @@ public class Rectangle {
         return new Point(origin.y + size.height, origin.x + size.width);
     }
 
+    /**
+     * @return the overlap of the two rectangles, which has a size of zero if they don't overlap
+     */
+    public Rectangle computeIntersection(Rectangle other) {
+        Point lower = computeLowerCorner();
+        Point otherLower = other.computeLowerCorner();
+        int y0 = Math.max(origin.y, other.origin.y);
+        int x0 = Math.max(origin.x, other.origin.x);
+        int y1 = Math.min(lower.y, otherLower.y);
+        int x1 = Math.min(lower.x, otherLower.x);
+        if (y1 <= y0 || x1 <= x0)
+            return new Rectangle(y0, x0, 0, 0);
+        return new Rectangle(y0, x0, y1 - y0, x1 - x0);
+    }
+
+    public boolean isEmpty() {
+        return size.height <= 0 || size.width <= 0;
+    }
+
     @Override
     public int hashCode() {
         return Objects.hash(origin, size);
@@ -0,0 +1,130 @@
+package com.traneptora.jxlatte.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Scratch buffers shared by the group decoders that run on the same thread, so decoding
+ * one group after another doesn't allocate them over and over.
+ *
+ * Each buffer is lent to one user at a time, who gives it back once the group is done.
+ * If it's already lent out, e.g. to an enclosing decoder, a new one is allocated instead.
+ * The contents of a buffer are whatever its last user left in it, unless stated otherwise.
+ */
+public class ScratchArena {
+
+    private static final ThreadLocal<ScratchArena> arenas = ThreadLocal.withInitial(ScratchArena::new);
+
+    public static ScratchArena get() {
+        return arenas.get();
+    }
+
+    private int[] window;
+    private int[][][] nonZeroes;
+    private int[][][] planes;
+    private float[][][] blocks;
+    private final Map<Integer, ArrayDeque<int[]>> rows = new HashMap<>();
+    private int rowInts = 0;
+
+    /* spare rows are kept up to this many ints in total */
+    private static final int MAX_ROW_INTS = 1 << 22;
+
+    private ScratchArena() {
+
+    }
+
+    /**
+     * @return an LZ77 window, or null if there isn't one to spare
+     */
+    public int[] takeWindow() {
+        int[] window = this.window;
+        this.window = null;
+        return window;
+    }
+
+    public void giveWindow(int[] window) {
+        if (this.window == null || window.length > this.window.length)
+            this.window = window;
+    }
+
+    /**
+     * @return the per-channel nonzero counts of the varblocks of a group, zeroed
+     */
+    public int[][][] takeNonZeroes() {
+        int[][][] nonZeroes = this.nonZeroes;
+        this.nonZeroes = null;
+        if (nonZeroes == null)
+            return new int[3][32][32];
+        for (int[][] nz : nonZeroes) {
+            for (int[] row : nz)
+                Arrays.fill(row, 0);
+        }
+        return nonZeroes;
+    }
+
+    public void giveNonZeroes(int[][][] nonZeroes) {
+        this.nonZeroes = nonZeroes;
+    }
+
+    /**
+     * @return count planes of at least height rows, each at least width long
+     */
+    public int[][][] takePlanes(int count, int height, int width) {
+        int[][][] planes = this.planes;
+        this.planes = null;
+        if (planes != null && planes.length >= count && planes[0].length >= height
+                && planes[0][0].length >= width)
+            return planes;
+        if (planes != null) {
+            count = Math.max(count, planes.length);
+            height = Math.max(height, planes[0].length);
+            width = Math.max(width, planes[0][0].length);
+        }
+        return new int[count][height][width];
+    }
+
+    public void givePlanes(int[][][] planes) {
+        if (this.planes == null || planes.length * planes[0].length * planes[0][0].length
+                > this.planes.length * this.planes[0].length * this.planes[0][0].length)
+            this.planes = planes;
+    }
+
+    /**
+     * @return the scratch blocks for the inverse DCT of a group
+     */
+    public float[][][] takeBlocks() {
+        float[][][] blocks = this.blocks;
+        this.blocks = null;
+        return blocks != null ? blocks : new float[5][256][256];
+    }
+
+    public void giveBlocks(float[][][] blocks) {
+        this.blocks = blocks;
+    }
+
+    /**
+     * Unlike the other buffers, rows are handed over for good, e.g. to become part of a channel.
+     * @return a row exactly width long, recycled if there's one to spare
+     */
+    public int[] takeRow(int width) {
+        ArrayDeque<int[]> spare = rows.get(width);
+        if (spare == null || spare.isEmpty())
+            return new int[width];
+        rowInts -= width;
+        return spare.pop();
+    }
+
+    /**
+     * Keeps rows that nobody uses anymore for takeRow, as many as fit.
+     */
+    public void giveRows(int[][] rows) {
+        for (int[] row : rows) {
+            if (row.length == 0 || rowInts + row.length > MAX_ROW_INTS)
+                continue;
+            this.rows.computeIfAbsent(row.length, k -> new ArrayDeque<>()).push(row);
+            rowInts += row.length;
+        }
+    }
+}
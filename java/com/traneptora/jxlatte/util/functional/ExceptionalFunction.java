@@ -0,0 +1,21 @@
+package com.traneptora.jxlatte.util.functional;
+
+import java.util.function.Function;
+
+@FunctionalInterface
+public interface ExceptionalFunction<T, U> extends Function<T, U> {
+    public U applyExceptionally(T t) throws Throwable;
+
+    @Override
+    public default U apply(T t) {
+        try {
+            return applyExceptionally(t);
+        } catch (Throwable ex) {
+            return FunctionalHelper.sneakyThrow(ex);
+        }
+    }
+
+    public static <T, U> Function<T, U> of(ExceptionalFunction<T, U> f) {
+        return f;
+    }
+}